@@ -46,6 +46,7 @@ import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.text.DecimalFormat;
 import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.XMLConstants;
@@ -94,6 +95,19 @@ import org.weasis.dicom.param.DicomState;
 public class FindSCU implements AutoCloseable {
     private static final Logger LOGGER = LoggerFactory.getLogger(FindSCU.class);
 
+    /**
+     * Receives the matches of a query as they arrive, instead of keeping them in the DicomState.
+     */
+    @FunctionalInterface
+    public interface ResultHandler {
+        /**
+         * @param match
+         *            the identifier of a pending response
+         * @return false for canceling the query
+         */
+        boolean onResult(Attributes match);
+    }
+
     public enum InformationModel {
         PatientRoot(UID.PatientRootQueryRetrieveInformationModelFind, "STUDY"),
         StudyRoot(UID.StudyRootQueryRetrieveInformationModelFind, "STUDY"),
@@ -149,9 +163,17 @@ public class FindSCU implements AutoCloseable {
     private File xsltFile;
     private Templates xsltTpls;
     private OutputStream out;
+    private boolean json = false;
+    private int writerQueueSize = 0;
+    private MatchWriter matchWriter;
 
-    private Association as;
+    private volatile Association as;
+    private volatile boolean aborted;
     private final AtomicInteger totNumMatches = new AtomicInteger();
+    private volatile ResultHandler resultHandler;
+    private boolean returnKeysOnly;
+    private volatile long queryStartTime;
+    private volatile long firstResultTime;
 
     private final DicomState state;
 
@@ -179,6 +201,19 @@ public class FindSCU implements AutoCloseable {
         }
     }
 
+    /**
+     * Propose asynchronous operations, the number of C-FIND requests that can be outstanding on the association. The
+     * value is set on the local Connection, as the A-ASSOCIATE-RQ is filled from it when connecting; call it after
+     * AdvancedParams.configure(Connection), which also sets the Connection.
+     *
+     * @param maxOpsInvoked
+     *            the maximum number of outstanding requests, 0 for unlimited
+     */
+    public final void setMaxOpsInvoked(int maxOpsInvoked) {
+        conn.setMaxOpsInvoked(maxOpsInvoked);
+        conn.setMaxOpsPerformed(1);
+    }
+
     public void addLevel(String s) {
         keys.setString(Tag.QueryRetrieveLevel, VR.CS, s);
     }
@@ -216,10 +251,59 @@ public class FindSCU implements AutoCloseable {
         this.xmlIncludeNamespaceDeclaration = includeNamespaceDeclaration;
     }
 
+    /**
+     * @param json
+     *            true for writing the matches in DICOM JSON, one object per line in a single file (implies
+     *            setConcatenateOutputFiles(true))
+     */
+    public final void setJSON(boolean json) {
+        this.json = json;
+    }
+
+    /**
+     * @param queueSize
+     *            the maximum number of matches waiting to be written by a dedicated thread when all the matches are
+     *            written in one file, 0 for writing them in the thread of the association
+     */
+    public final void setWriterQueueSize(int queueSize) {
+        this.writerQueueSize = queueSize;
+    }
+
     public final void setConcatenateOutputFiles(boolean catOut) {
         this.catOut = catOut;
     }
 
+    /**
+     * @param resultHandler
+     *            the handler receiving the matches, which are then not kept in the DicomState. Null for keeping the
+     *            matches in the DicomState.
+     */
+    public final void setResultHandler(ResultHandler resultHandler) {
+        this.resultHandler = resultHandler;
+    }
+
+    /**
+     * @param returnKeysOnly
+     *            true for keeping in each match only the attributes of the query keys. The other attributes sent by
+     *            the SCP are dropped as soon as the match arrives.
+     */
+    public final void setReturnKeysOnly(boolean returnKeysOnly) {
+        this.returnKeysOnly = returnKeysOnly;
+    }
+
+    /**
+     * @return the time in milliseconds between the last query request and its first match, -1 when no match has
+     *         been received
+     */
+    public long getFirstResultLatency() {
+        long first = firstResultTime;
+        return first == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(first - queryStartTime);
+    }
+
+    public int getNumberOfMatches() {
+        return totNumMatches.get();
+    }
+
     public final void setInputFilter(int[] inFilter) {
         this.inFilter = inFilter;
     }
@@ -251,6 +335,22 @@ public class FindSCU implements AutoCloseable {
     public void open()
         throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
         as = ae.connect(conn, remote, rq);
+        if (aborted) {
+            as.abort();
+        }
+    }
+
+    /**
+     * Abort the association from another thread, e.g. when the query exceeds a deadline. The pending query ends
+     * without waiting for the remaining responses. When called before open(), the association is aborted as soon as
+     * it is established.
+     */
+    public void abort() {
+        aborted = true;
+        Association a = as;
+        if (a != null) {
+            a.abort();
+        }
     }
 
     @Override
@@ -261,6 +361,13 @@ public class FindSCU implements AutoCloseable {
         }
         SafeClose.close(out);
         out = null;
+        if (matchWriter != null) {
+            try {
+                matchWriter.close();
+            } finally {
+                matchWriter = null;
+            }
+        }
     }
 
     public void query(File f) throws Exception {
@@ -319,22 +426,25 @@ public class FindSCU implements AutoCloseable {
     }
 
     private void query(Attributes keys) throws IOException, InterruptedException {
+        firstResultTime = 0;
+        queryStartTime = System.nanoTime();
         DimseRSPHandler rspHandler = new DimseRSPHandler(as.nextMessageID()) {
 
             int cancelAfter = FindSCU.this.cancelAfter;
             int numMatches;
+            boolean canceled;
 
             @Override
             public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
                 super.onDimseRSP(as, cmd, data);
                 int status = cmd.getInt(Tag.Status, -1);
                 if (Status.isPending(status)) {
-                    FindSCU.this.onResult(data);
+                    boolean next = FindSCU.this.onResult(data);
                     ++numMatches;
-                    if (cancelAfter != 0 && numMatches >= cancelAfter) {
+                    if (!canceled && (!next || cancelAfter != 0 && numMatches >= cancelAfter)) {
                         try {
                             cancel(as);
-                            cancelAfter = 0;
+                            canceled = true;
                         } catch (IOException e) {
                             LOGGER.error("Building response", e);
                         }
@@ -352,15 +462,32 @@ public class FindSCU implements AutoCloseable {
         query(keys, rspHandler);
     }
 
-    private void query(Attributes keys, DimseRSPHandler rspHandler) throws IOException, InterruptedException {
+    /**
+     * Send a C-FIND with other keys than getKeys(), e.g. for several queries on the same association.
+     */
+    public void query(Attributes keys, DimseRSPHandler rspHandler) throws IOException, InterruptedException {
         as.cfind(model.cuid, priority, keys, null, rspHandler);
     }
 
-    private void onResult(Attributes data) {
-        state.addDicomRSP(data);
+    private boolean onResult(Attributes match) {
+        if (firstResultTime == 0) {
+            firstResultTime = System.nanoTime();
+        }
+        Attributes data = returnKeysOnly ? project(match, keys) : match;
         int numMatches = totNumMatches.incrementAndGet();
+        ResultHandler handler = resultHandler;
+        boolean next = true;
+        if (handler == null) {
+            state.addDicomRSP(data);
+        } else {
+            next = handler.onResult(data);
+        }
         if (outDir == null) {
-            return;
+            return next;
+        }
+        if (json || catOut && xsltFile == null) {
+            writeToSingleFile(data);
+            return next;
         }
 
         try {
@@ -386,6 +513,28 @@ public class FindSCU implements AutoCloseable {
                 out = null;
             }
         }
+        return next;
+    }
+
+    private void writeToSingleFile(Attributes data) {
+        try {
+            if (matchWriter == null) {
+                MatchWriter.Format format =
+                    json ? MatchWriter.Format.JSON : xml ? MatchWriter.Format.XML : MatchWriter.Format.DICOM;
+                matchWriter = new MatchWriter(new File(outDir, fname(1)), format, xmlIndent, writerQueueSize);
+                matchWriter.setXMLOptions(xmlIncludeKeyword, xmlIncludeNamespaceDeclaration);
+            }
+            matchWriter.write(data);
+        } catch (IOException e) {
+            LOGGER.error("Building response", e);
+        }
+    }
+
+    private static Attributes project(Attributes match, Attributes keys) {
+        Attributes projected = new Attributes(match.bigEndian(), keys.size());
+        projected.addSelected(match, keys);
+        projected.trimToSize();
+        return projected;
     }
 
     private String fname(int i) {
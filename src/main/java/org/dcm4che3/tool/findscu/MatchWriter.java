@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.dcm4che3.tool.findscu;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.io.SAXWriter;
+import org.dcm4che3.json.JSONWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ * Writes all the matches of a query in one file with a single serializer: DICOM JSON with one object per line
+ * (NDJSON), one XML document with a NativeDicomModel element by match, or concatenated DICOM datasets. With a queue,
+ * the matches are written by a dedicated thread and the thread of the association only waits when the queue is full.
+ */
+public class MatchWriter implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MatchWriter.class);
+
+    public enum Format {
+        DICOM, XML, JSON
+    }
+
+    private static final String XML_ROOT = "NativeDicomModels";
+    private static final Attributes END = new Attributes(0);
+
+    private final Format format;
+    private final OutputStream out;
+    private Writer writer;
+    private JsonGeneratorFactory jsonFactory;
+    private DicomOutputStream dicomOut;
+    private TransformerHandler xmlHandler;
+    private SAXWriter saxWriter;
+    private final BlockingQueue<Attributes> queue;
+    private final Thread thread;
+    private volatile IOException error;
+
+    /**
+     * @param file
+     *            the output file
+     * @param format
+     *            the output format
+     * @param xmlIndent
+     *            true for indenting the XML
+     * @param queueSize
+     *            the maximum number of matches waiting to be written, 0 for writing in the calling thread
+     * @throws IOException
+     */
+    public MatchWriter(File file, Format format, boolean xmlIndent, int queueSize) throws IOException {
+        this.format = format;
+        this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        try {
+            open(xmlIndent);
+        } catch (Exception e) {
+            out.close();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        if (queueSize > 0) {
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.thread = new Thread(this::run, "findscu-writer");
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            this.queue = null;
+            this.thread = null;
+        }
+    }
+
+    private void open(boolean xmlIndent) throws Exception {
+        switch (format) {
+            case JSON:
+                writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+                jsonFactory = Json.createGeneratorFactory(Collections.emptyMap());
+                break;
+            case XML:
+                SAXTransformerFactory tf = (SAXTransformerFactory) TransformerFactory.newInstance();
+                tf.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+                xmlHandler = tf.newTransformerHandler();
+                xmlHandler.getTransformer().setOutputProperty(OutputKeys.INDENT, xmlIndent ? "yes" : "no");
+                xmlHandler.setResult(new StreamResult(out));
+                xmlHandler.startDocument();
+                xmlHandler.startElement("", XML_ROOT, XML_ROOT, new AttributesImpl());
+                // The SAXWriter writes a document by match, only its elements are kept
+                XMLFilterImpl filter = new XMLFilterImpl() {
+                    @Override
+                    public void startDocument() {
+                        // Single document
+                    }
+
+                    @Override
+                    public void endDocument() {
+                        // Single document
+                    }
+                };
+                filter.setContentHandler(xmlHandler);
+                saxWriter = new SAXWriter(filter);
+                break;
+            default:
+                dicomOut = new DicomOutputStream(out, UID.ImplicitVRLittleEndian);
+                break;
+        }
+    }
+
+    /**
+     * @param includeKeyword
+     *            true for writing the keyword of the XML elements
+     * @param includeNamespaceDeclaration
+     *            true for writing the namespace declaration of the XML elements
+     */
+    public void setXMLOptions(boolean includeKeyword, boolean includeNamespaceDeclaration) {
+        if (saxWriter != null) {
+            saxWriter.setIncludeKeyword(includeKeyword);
+            saxWriter.setIncludeNamespaceDeclaration(includeNamespaceDeclaration);
+        }
+    }
+
+    /**
+     * Write a match, or queue it when the writer has its own thread.
+     *
+     * @throws IOException
+     *             when a previous match could not be written
+     */
+    public void write(Attributes match) throws IOException {
+        checkError();
+        if (queue == null) {
+            writeMatch(match);
+        } else {
+            try {
+                queue.put(match);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while queuing a match", e);
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void run() {
+        try {
+            for (;;) {
+                Attributes match = queue.take();
+                if (match == END) {
+                    break;
+                }
+                if (error == null) {
+                    try {
+                        writeMatch(match);
+                    } catch (IOException e) {
+                        LOGGER.error("Writing match", e);
+                        error = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeMatch(Attributes match) throws IOException {
+        try {
+            switch (format) {
+                case JSON:
+                    JsonGenerator gen = jsonFactory.createGenerator(writer);
+                    new JSONWriter(gen).write(match);
+                    gen.flush();
+                    writer.write('\n');
+                    break;
+                case XML:
+                    saxWriter.write(match);
+                    break;
+                default:
+                    dicomOut.writeDataset(null, match);
+                    break;
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Write the pending matches and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        if (thread != null) {
+            try {
+                queue.put(END);
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            switch (format) {
+                case JSON:
+                    writer.flush();
+                    break;
+                case XML:
+                    xmlHandler.endElement("", XML_ROOT, XML_ROOT);
+                    xmlHandler.endDocument();
+                    break;
+                default:
+                    dicomOut.flush();
+                    break;
+            }
+        } catch (Exception e) {
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            out.close();
+        }
+        checkError();
+    }
+}
@@ -38,6 +38,7 @@
 
 package org.dcm4che3.tool.getscu;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -50,7 +51,6 @@ import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomInputStream;
-import org.dcm4che3.io.DicomOutputStream;
 import org.dcm4che3.net.ApplicationEntity;
 import org.dcm4che3.net.Association;
 import org.dcm4che3.net.Connection;
@@ -66,13 +66,17 @@ import org.dcm4che3.net.pdu.RoleSelection;
 import org.dcm4che3.net.service.BasicCStoreSCP;
 import org.dcm4che3.net.service.DicomServiceException;
 import org.dcm4che3.net.service.DicomServiceRegistry;
-import org.dcm4che3.util.SafeClose;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.ByteBufferPool;
+import org.weasis.dicom.util.ChannelOutputStream;
+import org.weasis.dicom.util.InstanceIndex;
 import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.util.StudyContainerStore;
+import org.weasis.dicom.util.WriteBehindWriter;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -122,6 +126,9 @@ public class GetSCU implements AutoCloseable {
     private int cancelAfter;
     private final DicomState state;
     private DimseRSPHandler rspHandler;
+    private WriteBehindWriter writeBehindWriter;
+    private StudyContainerStore studyContainerStore;
+    private InstanceIndex instanceIndex;
 
     private BasicCStoreSCP storageSCP = new BasicCStoreSCP("*") {
 
@@ -137,8 +144,24 @@ public class GetSCU implements AutoCloseable {
             String tsuid = pc.getTransferSyntax();
             File file = new File(storageDir, TMP_DIR + File.separator + iuid);
             try {
-                storeTo(as, as.createFileMetaInformation(iuid, cuid, tsuid), data, file);
-                renameTo(as, file, new File(storageDir, iuid));
+                if (studyContainerStore != null) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+                    data.copyTo(out);
+                    studyContainerStore.append(as.createFileMetaInformation(iuid, cuid, tsuid), out.toByteArray());
+                } else if (writeBehindWriter == null) {
+                    File dest = new File(storageDir, iuid);
+                    storeTo(as, as.createFileMetaInformation(iuid, cuid, tsuid), data, file);
+                    renameTo(as, file, dest);
+                    updateIndex(dest);
+                } else {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+                    data.copyTo(out);
+                    writeBehindWriter.write(as.createFileMetaInformation(iuid, cuid, tsuid), out.toByteArray(),
+                        new File(storageDir, iuid)).thenAccept(GetSCU.this::updateIndex);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DicomServiceException(Status.ProcessingFailure, e);
             } catch (Exception e) {
                 throw new DicomServiceException(Status.ProcessingFailure, e);
             }
@@ -187,12 +210,8 @@ public class GetSCU implements AutoCloseable {
     public static void storeTo(Association as, Attributes fmi, PDVInputStream data, File file) throws IOException {
         LOGGER.debug("{}: M-WRITE {}", as, file);
         file.getParentFile().mkdirs();
-        DicomOutputStream out = new DicomOutputStream(file);
-        try {
-            out.writeFileMetaInformation(fmi);
+        try (ChannelOutputStream out = ChannelOutputStream.openDicomFile(file, fmi, ByteBufferPool.DEFAULT)) {
             data.copyTo(out);
-        } finally {
-            SafeClose.close(out);
         }
     }
 
@@ -203,6 +222,18 @@ public class GetSCU implements AutoCloseable {
             throw new IOException("Failed to rename " + from + " to " + dest);
     }
 
+    private void updateIndex(File file) {
+        InstanceIndex index = instanceIndex;
+        if (index != null) {
+            try {
+                index.add(file);
+            } catch (IOException e) {
+                // The file is stored, the index can be recreated from the files
+                LOGGER.error("Cannot index {}", file, e);
+            }
+        }
+    }
+
     private DicomServiceRegistry createServiceRegistry() {
         DicomServiceRegistry serviceRegistry = new DicomServiceRegistry();
         serviceRegistry.addDicomService(storageSCP);
@@ -218,6 +249,31 @@ public class GetSCU implements AutoCloseable {
         this.storageDir = storageDir;
     }
 
+    /**
+     * @param writeBehindWriter
+     *            the writer for storing the files in background, null for writing them in the DIMSE thread
+     */
+    public void setWriteBehindWriter(WriteBehindWriter writeBehindWriter) {
+        this.writeBehindWriter = writeBehindWriter;
+    }
+
+    /**
+     * @param studyContainerStore
+     *            the store appending the instances to a container file by study, null for writing a file by instance
+     */
+    public void setStudyContainerStore(StudyContainerStore studyContainerStore) {
+        this.studyContainerStore = studyContainerStore;
+    }
+
+    /**
+     * @param instanceIndex
+     *            the index updated with the retrieved files (e.g. the one of a StorageQuotaManager), null for no index.
+     *            The instances appended to a StudyContainerStore are not indexed.
+     */
+    public void setInstanceIndex(InstanceIndex instanceIndex) {
+        this.instanceIndex = instanceIndex;
+    }
+
     public final void setPriority(int priority) {
         this.priority = priority;
     }
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.dcm4che3.tool.storescp;
+
+import java.util.Iterator;
+import java.util.Objects;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCFindSCP;
+import org.dcm4che3.net.service.BasicQueryTask;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.QueryTask;
+import org.weasis.dicom.util.InstanceIndex;
+
+/**
+ * C-FIND SCP (Patient Root and Study Root) answering from the InstanceIndex of the received files.
+ */
+public class IndexCFindSCP extends BasicCFindSCP {
+
+    static final String[] SOP_CLASSES =
+        { UID.PatientRootQueryRetrieveInformationModelFind, UID.StudyRootQueryRetrieveInformationModelFind };
+
+    private final InstanceIndex index;
+
+    public IndexCFindSCP(InstanceIndex index) {
+        super(SOP_CLASSES);
+        this.index = Objects.requireNonNull(index);
+    }
+
+    @Override
+    protected QueryTask calculateMatches(Association as, PresentationContext pc, Attributes rq, Attributes keys)
+        throws DicomServiceException {
+        boolean patientRoot =
+            UID.PatientRootQueryRetrieveInformationModelFind.equals(rq.getString(Tag.AffectedSOPClassUID));
+        String level = IndexQuery.getLevel(keys, patientRoot);
+        Iterator<Attributes> matches = IndexQuery.query(index, keys, level, as.getCalledAET()).iterator();
+        return new BasicQueryTask(as, pc, rq, keys) {
+
+            @Override
+            protected boolean hasMoreMatches() {
+                return matches.hasNext();
+            }
+
+            @Override
+            protected Attributes nextMatch() {
+                return matches.next();
+            }
+        };
+    }
+}
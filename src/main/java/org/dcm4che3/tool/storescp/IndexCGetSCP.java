@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.dcm4che3.tool.storescp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.imageio.codec.Decompressor;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.DataWriter;
+import org.dcm4che3.net.DataWriterAdapter;
+import org.dcm4che3.net.Dimse;
+import org.dcm4che3.net.pdu.PresentationContext;
+import org.dcm4che3.net.service.BasicCGetSCP;
+import org.dcm4che3.net.service.BasicRetrieveTask;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.dcm4che3.net.service.InstanceLocator;
+import org.dcm4che3.net.service.RetrieveTask;
+import org.weasis.dicom.util.IndexedInstance;
+import org.weasis.dicom.util.InstanceIndex;
+
+/**
+ * C-GET SCP (Patient Root and Study Root) sending the received files found in the InstanceIndex. The files are sent in
+ * their transfer syntax when accepted by the requester, otherwise they are decompressed. The sub-operations of the
+ * instances without an accepted presentation context are counted as failed.
+ */
+public class IndexCGetSCP extends BasicCGetSCP {
+
+    static final String[] SOP_CLASSES =
+        { UID.PatientRootQueryRetrieveInformationModelGet, UID.StudyRootQueryRetrieveInformationModelGet };
+
+    private final InstanceIndex index;
+    private volatile Consumer<String> studyAccessListener;
+
+    public IndexCGetSCP(InstanceIndex index) {
+        super(SOP_CLASSES);
+        this.index = Objects.requireNonNull(index);
+    }
+
+    /**
+     * @param studyAccessListener
+     *            notified with the Study Instance UID of the retrieved studies, null for no notification
+     */
+    public void setStudyAccessListener(Consumer<String> studyAccessListener) {
+        this.studyAccessListener = studyAccessListener;
+    }
+
+    @Override
+    protected RetrieveTask calculateMatches(Association as, PresentationContext pc, Attributes rq, Attributes keys)
+        throws DicomServiceException {
+        boolean patientRoot =
+            UID.PatientRootQueryRetrieveInformationModelGet.equals(rq.getString(Tag.AffectedSOPClassUID));
+        IndexQuery.getLevel(keys, patientRoot);
+        List<IndexedInstance> instances = IndexQuery.findInstances(index, keys);
+        if (instances.isEmpty()) {
+            return null;
+        }
+        List<InstanceLocator> locators = new ArrayList<>(instances.size());
+        Set<String> studies = new LinkedHashSet<>();
+        for (IndexedInstance instance : instances) {
+            locators.add(new InstanceLocator(instance.getString(Tag.SOPClassUID), instance.getSopInstanceUID(),
+                instance.getTransferSyntaxUID(), instance.getFile().toURI().toString()));
+            studies.add(instance.getStudyInstanceUID());
+        }
+        Consumer<String> listener = studyAccessListener;
+        if (listener != null) {
+            studies.forEach(listener);
+        }
+        return new IndexRetrieveTask(as, pc, rq, locators);
+    }
+
+    static class IndexRetrieveTask extends BasicRetrieveTask<InstanceLocator> {
+
+        IndexRetrieveTask(Association as, PresentationContext pc, Attributes rq, List<InstanceLocator> locators) {
+            super(Dimse.C_GET_RQ, as, pc, rq, locators, as);
+        }
+
+        @Override
+        protected String selectTransferSyntaxFor(Association storeas, InstanceLocator inst) {
+            Set<String> tss = storeas.getTransferSyntaxesFor(inst.cuid);
+            if (tss.contains(inst.tsuid)) {
+                return inst.tsuid;
+            }
+            if (tss.contains(UID.ExplicitVRLittleEndian)) {
+                return UID.ExplicitVRLittleEndian;
+            }
+            if (tss.contains(UID.ImplicitVRLittleEndian)) {
+                return UID.ImplicitVRLittleEndian;
+            }
+            // The exception is caught by cstore() which counts the sub-operation as failed
+            throw new IllegalStateException(
+                "No accepted transfer syntax for " + inst.cuid + " of " + inst.iuid + " (" + inst.tsuid + ")");
+        }
+
+        @Override
+        protected DataWriter createDataWriter(InstanceLocator inst, String tsuid) throws Exception {
+            Attributes attrs;
+            try (DicomInputStream in = new DicomInputStream(inst.getFile())) {
+                in.setIncludeBulkData(IncludeBulkData.URI);
+                attrs = in.readDataset(-1, -1);
+            }
+            if (!tsuid.equals(inst.tsuid)) {
+                Decompressor.decompress(attrs, inst.tsuid);
+            }
+            return new DataWriterAdapter(attrs);
+        }
+    }
+}
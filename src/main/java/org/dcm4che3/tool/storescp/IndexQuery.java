@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.dcm4che3.tool.storescp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.DicomServiceException;
+import org.weasis.dicom.util.IndexedInstance;
+import org.weasis.dicom.util.InstanceIndex;
+
+/**
+ * Matching of the C-FIND and C-GET identifiers against the instances of an InstanceIndex.
+ */
+final class IndexQuery {
+
+    static final String PATIENT = "PATIENT";
+    static final String STUDY = "STUDY";
+    static final String SERIES = "SERIES";
+    static final String IMAGE = "IMAGE";
+
+    private static final int[] PATIENT_TAGS =
+        { Tag.PatientName, Tag.PatientID, Tag.IssuerOfPatientID, Tag.PatientBirthDate, Tag.PatientSex };
+    private static final int[] STUDY_TAGS = { Tag.PatientName, Tag.PatientID, Tag.IssuerOfPatientID,
+        Tag.PatientBirthDate, Tag.PatientSex, Tag.StudyInstanceUID, Tag.StudyDate, Tag.StudyTime, Tag.AccessionNumber,
+        Tag.StudyID, Tag.StudyDescription, Tag.ReferringPhysicianName };
+    private static final int[] SERIES_TAGS = { Tag.PatientName, Tag.PatientID, Tag.IssuerOfPatientID,
+        Tag.PatientBirthDate, Tag.PatientSex, Tag.StudyInstanceUID, Tag.StudyDate, Tag.StudyTime, Tag.AccessionNumber,
+        Tag.StudyID, Tag.StudyDescription, Tag.ReferringPhysicianName, Tag.SeriesInstanceUID, Tag.Modality,
+        Tag.SeriesNumber, Tag.SeriesDescription };
+    private static final int[] SORTED_SERIES_TAGS = sort(SERIES_TAGS);
+
+    private IndexQuery() {
+    }
+
+    private static int[] sort(int[] tags) {
+        int[] sorted = tags.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    static String getLevel(Attributes keys, boolean patientLevel) throws DicomServiceException {
+        String level = keys.getString(Tag.QueryRetrieveLevel);
+        if ((patientLevel && PATIENT.equals(level)) || STUDY.equals(level) || SERIES.equals(level)
+            || IMAGE.equals(level)) {
+            return level;
+        }
+        throw new DicomServiceException(Status.IdentifierDoesNotMatchSOPClass,
+            "Invalid Query/Retrieve Level: " + level);
+    }
+
+    /**
+     * @return the instances matching the keys of all the levels
+     */
+    static List<IndexedInstance> findInstances(InstanceIndex index, Attributes keys) {
+        Attributes filter = new Attributes(keys);
+        filter.remove(Tag.QueryRetrieveLevel);
+        filter.remove(Tag.SpecificCharacterSet);
+        String[] modalities = filter.getStrings(Tag.ModalitiesInStudy);
+        filter.remove(Tag.ModalitiesInStudy);
+        if (modalities != null && modalities.length > 0 && !filter.containsValue(Tag.Modality)) {
+            filter.setString(Tag.Modality, VR.CS, modalities);
+        }
+
+        List<IndexedInstance> list = new ArrayList<>();
+        String[] iuids = keys.getStrings(Tag.SOPInstanceUID);
+        if (hasValues(iuids)) {
+            for (String iuid : iuids) {
+                IndexedInstance instance = index.getInstance(iuid);
+                if (instance != null && instance.toAttributes().matches(filter, true, true)) {
+                    list.add(instance);
+                }
+            }
+            return list;
+        }
+
+        // The patient, study and series attributes are matched once on the first instance of the study or the
+        // series, the attributes of each instance are built only when the keys contain instance attributes
+        boolean instanceKeys = hasInstanceKeys(filter);
+        for (String seriesUID : getCandidateSeries(index, keys, filter)) {
+            List<IndexedInstance> instances = index.getInstancesOfSeries(seriesUID);
+            if (instances.isEmpty() || !instances.get(0).toAttributes(SERIES_TAGS).matches(filter, true, true)) {
+                continue;
+            }
+            if (instanceKeys) {
+                for (IndexedInstance instance : instances) {
+                    if (instance.toAttributes().matches(filter, true, true)) {
+                        list.add(instance);
+                    }
+                }
+            } else {
+                list.addAll(instances);
+            }
+        }
+        return list;
+    }
+
+    private static List<String> getCandidateSeries(InstanceIndex index, Attributes keys, Attributes filter) {
+        String[] seriesUIDs = keys.getStrings(Tag.SeriesInstanceUID);
+        if (hasValues(seriesUIDs)) {
+            return Arrays.asList(seriesUIDs);
+        }
+        List<String> studyUIDs;
+        String[] uids = keys.getStrings(Tag.StudyInstanceUID);
+        String patientID = keys.getString(Tag.PatientID);
+        if (hasValues(uids)) {
+            studyUIDs = Arrays.asList(uids);
+        } else if (patientID != null && !patientID.isEmpty() && patientID.indexOf('*') < 0
+            && patientID.indexOf('?') < 0) {
+            studyUIDs = index.getStudyUIDs(patientID);
+        } else {
+            studyUIDs = index.getStudyUIDs();
+        }
+
+        List<String> list = new ArrayList<>();
+        for (String studyUID : studyUIDs) {
+            List<String> series = index.getSeriesUIDs(studyUID);
+            if (!series.isEmpty()) {
+                List<IndexedInstance> first = index.getInstancesOfSeries(series.get(0));
+                // Skip the whole study when the patient or study attributes do not match
+                if (!first.isEmpty() && first.get(0).toAttributes(STUDY_TAGS).matches(filter, true, true)) {
+                    list.addAll(series);
+                }
+            }
+        }
+        return list;
+    }
+
+    private static boolean hasInstanceKeys(Attributes filter) {
+        for (int tag : filter.tags()) {
+            if (Arrays.binarySearch(SORTED_SERIES_TAGS, tag) < 0 && filter.containsValue(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasValues(String[] values) {
+        return values != null && values.length > 0 && !values[0].isEmpty();
+    }
+
+    /**
+     * @return the matches of the level, with the attributes of the level and of the upper levels
+     */
+    static List<Attributes> query(InstanceIndex index, Attributes keys, String level, String retrieveAet) {
+        List<IndexedInstance> instances = findInstances(index, keys);
+        List<Attributes> matches = new ArrayList<>();
+        if (IMAGE.equals(level)) {
+            for (IndexedInstance instance : instances) {
+                matches.add(instance.toAttributes());
+            }
+        } else if (SERIES.equals(level)) {
+            for (List<IndexedInstance> series : group(instances, IndexedInstance::getSeriesInstanceUID)) {
+                IndexedInstance first = series.get(0);
+                Attributes match = first.toAttributes(SERIES_TAGS);
+                match.setInt(Tag.NumberOfSeriesRelatedInstances, VR.IS,
+                    index.getInstancesOfSeries(first.getSeriesInstanceUID()).size());
+                matches.add(match);
+            }
+        } else if (STUDY.equals(level)) {
+            for (List<IndexedInstance> study : group(instances, IndexedInstance::getStudyInstanceUID)) {
+                IndexedInstance first = study.get(0);
+                Attributes match = first.toAttributes(STUDY_TAGS);
+                addStudyCounts(index, first.getStudyInstanceUID(), match);
+                matches.add(match);
+            }
+        } else {
+            for (List<IndexedInstance> patient : group(instances, IndexedInstance::getPatientID)) {
+                IndexedInstance first = patient.get(0);
+                Attributes match = first.toAttributes(PATIENT_TAGS);
+                List<String> studyUIDs = index.getStudyUIDs(first.getPatientID());
+                int nbSeries = 0;
+                int nbInstances = 0;
+                for (String studyUID : studyUIDs) {
+                    nbSeries += index.getSeriesUIDs(studyUID).size();
+                    nbInstances += index.getInstancesOfStudy(studyUID).size();
+                }
+                match.setInt(Tag.NumberOfPatientRelatedStudies, VR.IS, studyUIDs.size());
+                match.setInt(Tag.NumberOfPatientRelatedSeries, VR.IS, nbSeries);
+                match.setInt(Tag.NumberOfPatientRelatedInstances, VR.IS, nbInstances);
+                matches.add(match);
+            }
+        }
+
+        for (Attributes match : matches) {
+            match.setString(Tag.QueryRetrieveLevel, VR.CS, level);
+            match.setString(Tag.RetrieveAETitle, VR.AE, retrieveAet);
+        }
+        return matches;
+    }
+
+    private static void addStudyCounts(InstanceIndex index, String studyUID, Attributes match) {
+        List<IndexedInstance> all = index.getInstancesOfStudy(studyUID);
+        Set<String> modalities = new LinkedHashSet<>();
+        for (IndexedInstance instance : all) {
+            String modality = instance.getString(Tag.Modality);
+            if (modality != null) {
+                modalities.add(modality);
+            }
+        }
+        match.setInt(Tag.NumberOfStudyRelatedSeries, VR.IS, index.getSeriesUIDs(studyUID).size());
+        match.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS, all.size());
+        match.setString(Tag.ModalitiesInStudy, VR.CS, modalities.toArray(new String[0]));
+    }
+
+    private static Collection<List<IndexedInstance>> group(List<IndexedInstance> instances,
+        Function<IndexedInstance, String> key) {
+        Map<String, List<IndexedInstance>> map = new LinkedHashMap<>();
+        for (IndexedInstance instance : instances) {
+            map.computeIfAbsent(key.apply(instance), k -> new ArrayList<>()).add(instance);
+        }
+        return map.values();
+    }
+}
@@ -38,17 +38,29 @@
 
 package org.dcm4che3.tool.storescp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
@@ -74,6 +86,21 @@ import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
 import org.weasis.core.util.StringUtil;
 import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.util.BackgroundCompressor;
+import org.weasis.dicom.util.ByteBufferPool;
+import org.weasis.dicom.util.ChannelOutputStream;
+import org.weasis.dicom.util.IndexedInstance;
+import org.weasis.dicom.util.InstanceFingerprint;
+import org.weasis.dicom.util.InstanceIndex;
+import org.weasis.dicom.util.StorageQuotaManager;
+import org.weasis.dicom.util.StorageVolumes;
+import org.weasis.dicom.util.StoreEvent;
+import org.weasis.dicom.util.StoreEventService;
+import org.weasis.dicom.util.StoreMetrics;
+import org.weasis.dicom.util.StudyContainerStore;
+import org.weasis.dicom.util.StorageVolumes.Volume;
+import org.weasis.dicom.util.TeeInputStream;
+import org.weasis.dicom.util.WriteBehindWriter;
 
 /**
  * @author Gunter Zeilinger <gunterze@gmail.com>
@@ -84,6 +111,22 @@ public class StoreSCP {
     private static final Logger LOGGER = LoggerFactory.getLogger(StoreSCP.class);
 
     private static final String TMP_DIR = "tmp";
+    public static final String PART_EXTENSION = WriteBehindWriter.PART_EXTENSION;
+    private static final int MAX_HEADER_IN_MEMORY = 1024 * 1024;
+    private static final int DEFAULT_MAX_RECEIVED_INSTANCES = 100_000;
+    // Maximum wait in seconds for a concurrent reception of the same instance
+    private static final long DUPLICATE_TIMEOUT = 30;
+
+    public enum DuplicatePolicy {
+        /** Write every received instance */
+        OVERWRITE,
+        /** Skip an instance when the SOP Instance UID has already been stored */
+        SKIP,
+        /** Skip an instance when a dataset with the same SOP Instance UID and size has been received */
+        SKIP_SAME_SIZE,
+        /** Skip an instance when a dataset with the same SOP Instance UID, size and hash has been received */
+        SKIP_SAME_HASH
+    }
 
     private final Device device = new Device("storescp");
     private final ApplicationEntity ae = new ApplicationEntity("*");
@@ -91,10 +134,51 @@ public class StoreSCP {
     private final File storageDir;
     private final List<DicomNode> authorizedCallingNodes;
     private AttributesFormat filePathFormat;
-    private Pattern regex;
+    private boolean datasetInPath;
     private volatile int status = Status.Success;
     private int[] receiveDelays;
     private int[] responseDelays;
+    private WriteBehindWriter writeBehindWriter;
+    private BackgroundCompressor backgroundCompressor;
+    private InstanceIndex instanceIndex;
+    private volatile StorageVolumes storageVolumes;
+    private volatile StoreEventService storeEventService;
+    private volatile StudyContainerStore studyContainerStore;
+    private volatile StorageQuotaManager storageQuotaManager;
+    private volatile StoreMetrics storeMetrics;
+    private ByteBufferPool bufferPool = ByteBufferPool.DEFAULT;
+    private volatile DuplicatePolicy duplicatePolicy = DuplicatePolicy.OVERWRITE;
+    private volatile int maxReceivedInstances = DEFAULT_MAX_RECEIVED_INSTANCES;
+    // Least recently used fingerprints, the index keeps the others
+    private final Map<String, InstanceFingerprint> receivedInstances =
+        Collections.synchronizedMap(new LinkedHashMap<String, InstanceFingerprint>(1024, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, InstanceFingerprint> eldest) {
+                return size() > maxReceivedInstances;
+            }
+        });
+    private IndexCFindSCP cfindSCP;
+    private IndexCGetSCP cgetSCP;
+    // Transfer capabilities added by setQueryRetrieveEnabled(true) and the ones they replaced (null when none)
+    private final Map<TransferCapability, TransferCapability> queryRetrieveCapabilities = new IdentityHashMap<>();
+    private final DicomServiceRegistry serviceRegistry;
+    private final StorageQuotaManager.EvictionListener evictionListener = new StorageQuotaManager.EvictionListener() {
+        @Override
+        public void studyEvicting(String studyUID) {
+            BackgroundCompressor compressor = backgroundCompressor;
+            if (compressor != null) {
+                // Must not write a compressed file after the deletion
+                compressor.cancelStudy(studyUID);
+            }
+        }
+
+        @Override
+        public void studyEvicted(String studyUID, List<IndexedInstance> instances) {
+            onStudyEvicted(studyUID, instances);
+        }
+    };
 
     private final BasicCStoreSCP cstoreSCP = new BasicCStoreSCP("*") {
 
@@ -113,36 +197,51 @@ public class StoreSCP {
                 }
             }
             sleep(as, receiveDelays);
+            String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
+            InstanceFingerprint fingerprint = null;
             try {
                 rsp.setInt(Tag.Status, VR.US, status);
 
                 String cuid = rq.getString(Tag.AffectedSOPClassUID);
-                String iuid = rq.getString(Tag.AffectedSOPInstanceUID);
                 String tsuid = pc.getTransferSyntax();
-                File file = new File(storageDir, TMP_DIR + File.separator + iuid);
-                try {
-                    Attributes fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
-                    storeTo(as, fmi, data, file);
-                    String filename;
-                    if (filePathFormat == null) {
-                        filename = iuid;
-                    } else {
-                        Attributes a = fmi;
-                        Matcher regexMatcher = regex.matcher(filePathFormat.toString());
-                        while (regexMatcher.find()) {
-                            if (!regexMatcher.group(1).startsWith("0002")) {
-                                a = parse(file);
-                                a.addAll(fmi);
-                                break;
-                            }
-                        }
-                        filename = filePathFormat.format(a);
+                Attributes fmi = as.createFileMetaInformation(iuid, cuid, tsuid);
+                DuplicatePolicy policy = duplicatePolicy;
+                if (policy != DuplicatePolicy.OVERWRITE) {
+                    fingerprint = new InstanceFingerprint(policy == DuplicatePolicy.SKIP_SAME_HASH);
+                    // Claim the SOP Instance UID, a concurrent reception of the same instance is a duplicate
+                    InstanceFingerprint previous = receivedInstances.putIfAbsent(iuid, fingerprint);
+                    InstanceIndex index = instanceIndex;
+                    IndexedInstance indexed = previous == null && index != null ? index.getInstance(iuid) : null;
+                    if (previous != null || indexed != null) {
+                        storeDuplicate(as, fmi, data, iuid, policy, fingerprint, previous, indexed);
+                        return;
+                    }
+                }
+                if (studyContainerStore != null) {
+                    storeInContainer(as, fmi, readFully(data, fingerprint), iuid, fingerprint);
+                } else if (writeBehindWriter != null) {
+                    storeInMemory(as, fmi, readFully(data, fingerprint), iuid, fingerprint);
+                } else if (isHeaderRequired()) {
+                    storeWithHeader(as, fmi, data, iuid, fingerprint);
+                } else {
+                    File dest = new File(storageDir, filePathFormat == null ? iuid : filePathFormat.format(fmi));
+                    File part = getPartFile(dest);
+                    try {
+                        storeTo(as, fmi, data, part, fingerprint);
+                        renameTo(as, part, dest);
+                        onStored(as, iuid, fingerprint, null, dest);
+                    } catch (Exception e) {
+                        FileUtil.delete(part);
+                        throw new DicomServiceException(Status.ProcessingFailure, e);
                     }
-                    renameTo(as, file, new File(storageDir, filename));
-                } catch (Exception e) {
-                    FileUtil.delete(file);
-                    throw new DicomServiceException(Status.ProcessingFailure, e);
                 }
+            } catch (IOException | RuntimeException e) {
+                forgetFingerprint(iuid, fingerprint);
+                StoreMetrics metrics = storeMetrics;
+                if (metrics != null) {
+                    metrics.failed();
+                }
+                throw e;
             } finally {
                 sleep(as, responseDelays);
             }
@@ -179,7 +278,8 @@ public class StoreSCP {
      */
     public StoreSCP(File storageDir, List<DicomNode> authorizedCallingNodes) {
         this.storageDir = Objects.requireNonNull(storageDir);
-        device.setDimseRQHandler(createServiceRegistry());
+        this.serviceRegistry = createServiceRegistry();
+        device.setDimseRQHandler(serviceRegistry);
         device.addConnection(conn);
         device.addApplicationEntity(ae);
         ae.setAssociationAcceptor(true);
@@ -187,26 +287,372 @@ public class StoreSCP {
         this.authorizedCallingNodes = authorizedCallingNodes;
     }
 
-    private void storeTo(Association as, Attributes fmi, PDVInputStream data, File file) throws IOException {
+    private void storeTo(Association as, Attributes fmi, PDVInputStream data, File file,
+        InstanceFingerprint fingerprint) throws IOException {
         LOGGER.debug("{}: M-WRITE {}", as, file);
         file.getParentFile().mkdirs();
-        try (DicomOutputStream out = new DicomOutputStream(file)) {
-            out.writeFileMetaInformation(fmi);
-            data.copyTo(out);
+        try (ChannelOutputStream out = ChannelOutputStream.openDicomFile(file, fmi, bufferPool)) {
+            data.copyTo(wrap(out, fingerprint));
+        }
+    }
+
+    private static OutputStream wrap(OutputStream out, InstanceFingerprint fingerprint) {
+        return fingerprint == null ? out : fingerprint.wrap(out);
+    }
+
+    private static byte[] readFully(PDVInputStream data, InstanceFingerprint fingerprint) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        data.copyTo(wrap(out, fingerprint));
+        return out.toByteArray();
+    }
+
+    private void forgetFingerprint(String iuid, InstanceFingerprint fingerprint) {
+        if (fingerprint != null) {
+            fingerprint.abort();
+            receivedInstances.remove(iuid, fingerprint);
+        }
+    }
+
+    /**
+     * Acknowledge a resent instance without writing it. With a verification policy, the data is received in memory
+     * and stored only when it differs from the previous one.
+     *
+     * @param previous
+     *            the fingerprint of the instance received before, null when only in the index
+     * @param indexed
+     *            the instance of the index when previous is null
+     */
+    private void storeDuplicate(Association as, Attributes fmi, PDVInputStream data, String iuid,
+        DuplicatePolicy policy, InstanceFingerprint fingerprint, InstanceFingerprint previous, IndexedInstance indexed)
+        throws IOException {
+        if (policy == DuplicatePolicy.SKIP) {
+            data.skipAll();
+            forgetFingerprint(iuid, fingerprint);
+            LOGGER.info("{}: duplicate instance {} skipped", as, iuid);
+            return;
+        }
+        byte[] dataset = readFully(data, fingerprint);
+        if (isIdentical(fmi, policy, fingerprint, previous, indexed)) {
+            // Release the digest, the fingerprint is kept when it has claimed the SOP Instance UID
+            fingerprint.finish();
+            LOGGER.info("{}: identical duplicate instance {} skipped", as, iuid);
+        } else {
+            LOGGER.info("{}: instance {} differs from the stored one, overwrite it", as, iuid);
+            if (studyContainerStore != null) {
+                storeInContainer(as, fmi, dataset, iuid, fingerprint);
+            } else {
+                storeInMemory(as, fmi, dataset, iuid, fingerprint);
+            }
+        }
+    }
+
+    private static boolean isIdentical(Attributes fmi, DuplicatePolicy policy, InstanceFingerprint fingerprint,
+        InstanceFingerprint previous, IndexedInstance indexed) throws IOException {
+        if (previous != null) {
+            try {
+                // The previous one can still be in reception
+                if (!previous.awaitCompletion(DUPLICATE_TIMEOUT, TimeUnit.SECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            fingerprint.finish();
+            return fingerprint.matches(previous);
+        }
+        // Stored before the start, only the size of the file is known
+        return policy == DuplicatePolicy.SKIP_SAME_SIZE
+            && fmi.getString(Tag.TransferSyntaxUID).equals(indexed.getTransferSyntaxUID())
+            && indexed.getSize() == getFileSize(fmi, fingerprint.getSize());
+    }
+
+    private static long getFileSize(Attributes fmi, long datasetSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(512);
+        try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+            dos.writeFileMetaInformation(fmi);
+        }
+        return out.size() + datasetSize;
+    }
+
+    /**
+     * Parse the attributes before the pixel data while they are received for building the file path, and then write
+     * the file next to its final destination. The header is kept in memory, except when it is too large (e.g. object
+     * without pixel data), in this case the data is written in the temporary folder.
+     */
+    private void storeWithHeader(Association as, Attributes fmi, PDVInputStream data, String iuid,
+        InstanceFingerprint fingerprint) throws DicomServiceException {
+        HeaderOutputStream header = new HeaderOutputStream(fmi, new File(storageDir, TMP_DIR + File.separator + iuid));
+        File part = null;
+        Volume volume = null;
+        try {
+            // Do not close the DicomInputStream, it would close the PDVInputStream
+            DicomInputStream in =
+                new DicomInputStream(new TeeInputStream(data, wrap(header, fingerprint)),
+                    fmi.getString(Tag.TransferSyntaxUID));
+            in.setIncludeBulkData(IncludeBulkData.NO);
+            Attributes attrs = in.readDataset(-1, Tag.PixelData);
+            attrs.addAll(fmi);
+            volume = selectVolume(attrs);
+            File dest = getDestination(attrs, iuid, volume);
+
+            if (header.isSpilled()) {
+                part = header.getSpillFile();
+                try (DicomOutputStream out = header.getSpillStream()) {
+                    data.copyTo(wrap(out, fingerprint));
+                }
+            } else {
+                part = getPartFile(dest);
+                LOGGER.debug("{}: M-WRITE {}", as, part);
+                part.getParentFile().mkdirs();
+                try (ChannelOutputStream out = ChannelOutputStream.openDicomFile(part, fmi, bufferPool)) {
+                    header.writeTo(out);
+                    data.copyTo(wrap(out, fingerprint));
+                }
+            }
+            renameTo(as, part, dest);
+            endWrite(volume, dest.length());
+            onStored(as, iuid, fingerprint, attrs, dest);
+        } catch (Exception e) {
+            endWrite(volume, 0);
+            SafeClose.close(header);
+            FileUtil.delete(header.getSpillFile());
+            if (part != null) {
+                FileUtil.delete(part);
+            }
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        }
+    }
+
+    private static Attributes parseHeader(Attributes fmi, byte[] dataset) throws IOException {
+        try (DicomInputStream in =
+            new DicomInputStream(new ByteArrayInputStream(dataset), fmi.getString(Tag.TransferSyntaxUID))) {
+            in.setIncludeBulkData(IncludeBulkData.NO);
+            Attributes attrs = in.readDataset(-1, Tag.PixelData);
+            attrs.addAll(fmi);
+            return attrs;
         }
     }
 
+    /**
+     * Append a dataset received in memory to the container file of its study.
+     */
+    private void storeInContainer(Association as, Attributes fmi, byte[] dataset, String iuid,
+        InstanceFingerprint fingerprint) throws DicomServiceException {
+        try {
+            Attributes attrs = parseHeader(fmi, dataset);
+            StudyContainerStore store = studyContainerStore;
+            String studyUID = attrs.getString(Tag.StudyInstanceUID);
+            store.append(studyUID, fmi, dataset);
+            LOGGER.debug("{}: M-APPEND {} to {}", as, iuid, store.getContainerFile(studyUID));
+            rememberFingerprint(iuid, fingerprint);
+            StoreMetrics metrics = storeMetrics;
+            if (metrics != null) {
+                metrics.stored(as.getCalledAET(), dataset.length);
+            }
+            StoreEventService events = storeEventService;
+            if (events != null) {
+                events.instanceStored(
+                    new StoreEvent(attrs, store.getContainerFile(studyUID), as.getCallingAET(), as.getCalledAET()));
+            }
+        } catch (Exception e) {
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        }
+    }
+
+    /**
+     * Store a dataset received in memory, with the write-behind writer when defined.
+     */
+    private void storeInMemory(Association as, Attributes fmi, byte[] dataset, String iuid,
+        InstanceFingerprint fingerprint) throws DicomServiceException {
+        File part = null;
+        Volume volume = null;
+        try {
+            Attributes header = isHeaderRequired() ? parseHeader(fmi, dataset) : null;
+            Attributes attrs = header == null ? fmi : header;
+            volume = selectVolume(attrs);
+            File dest = getDestination(attrs, iuid, volume);
+            WriteBehindWriter writer = writeBehindWriter;
+            if (writer != null) {
+                Volume v = volume;
+                writer.write(fmi, dataset, dest).whenComplete((f, t) -> {
+                    endWrite(v, t == null ? f.length() : 0);
+                    if (t == null) {
+                        onStored(as, iuid, fingerprint, header, f);
+                    } else {
+                        forgetFingerprint(iuid, fingerprint);
+                        StoreMetrics metrics = storeMetrics;
+                        if (metrics != null) {
+                            metrics.failed();
+                        }
+                    }
+                });
+                volume = null;
+            } else {
+                part = getPartFile(dest);
+                LOGGER.debug("{}: M-WRITE {}", as, part);
+                part.getParentFile().mkdirs();
+                try (ChannelOutputStream out = ChannelOutputStream.openDicomFile(part, fmi, bufferPool)) {
+                    out.write(dataset);
+                }
+                renameTo(as, part, dest);
+                endWrite(volume, dest.length());
+                onStored(as, iuid, fingerprint, header, dest);
+            }
+        } catch (InterruptedException e) {
+            endWrite(volume, 0);
+            Thread.currentThread().interrupt();
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        } catch (Exception e) {
+            endWrite(volume, 0);
+            if (part != null) {
+                FileUtil.delete(part);
+            }
+            throw new DicomServiceException(Status.ProcessingFailure, e);
+        }
+    }
+
+    /**
+     * @return true when the attributes of the dataset must be parsed while receiving
+     */
+    private boolean isHeaderRequired() {
+        return datasetInPath || storageVolumes != null || storeEventService != null || instanceIndex != null;
+    }
+
+    /**
+     * @return the volume of the study (the write is started) or null when the storage has a single folder
+     */
+    private Volume selectVolume(Attributes attrs) {
+        StorageVolumes volumes = storageVolumes;
+        if (volumes == null) {
+            return null;
+        }
+        Volume volume = volumes.select(attrs.getString(Tag.StudyInstanceUID));
+        volume.begin();
+        return volume;
+    }
+
+    private static void endWrite(Volume volume, long bytes) {
+        if (volume != null) {
+            volume.end(bytes);
+        }
+    }
+
+    private File getDestination(Attributes attrs, String iuid, Volume volume) {
+        File root = volume == null ? storageDir : volume.getRoot();
+        return new File(root, filePathFormat == null ? iuid : filePathFormat.format(attrs));
+    }
+
+    private void onStored(Association as, String iuid, InstanceFingerprint fingerprint, Attributes attrs,
+        File file) {
+        rememberFingerprint(iuid, fingerprint);
+        updateIndex(attrs, file);
+        StoreMetrics metrics = storeMetrics;
+        if (metrics != null) {
+            metrics.stored(as.getCalledAET(), file.length());
+        }
+        StorageQuotaManager quota = storageQuotaManager;
+        if (quota != null && attrs != null) {
+            quota.recordReceived(attrs.getString(Tag.StudyInstanceUID));
+        }
+        StoreEventService events = storeEventService;
+        if (events != null && attrs != null) {
+            events.instanceStored(new StoreEvent(attrs, file, as.getCallingAET(), as.getCalledAET()));
+        }
+        BackgroundCompressor compressor = backgroundCompressor;
+        if (compressor != null) {
+            compressor.submit(file, attrs == null ? null : attrs.getString(Tag.StudyInstanceUID),
+                f -> updateIndex(null, f));
+        }
+    }
+
+    private void rememberFingerprint(String iuid, InstanceFingerprint fingerprint) {
+        if (fingerprint != null) {
+            // Only the size and the hash are kept
+            fingerprint.finish();
+            receivedInstances.put(iuid, fingerprint);
+        }
+    }
+
+    private void updateIndex(Attributes attrs, File file) {
+        InstanceIndex index = instanceIndex;
+        if (index != null) {
+            try {
+                index.add(attrs, file);
+            } catch (IOException e) {
+                // The file is stored, the index can be recreated from the files
+                LOGGER.error("Cannot index {}", file, e);
+            }
+        }
+    }
+
+    private static File getPartFile(File dest) {
+        return new File(dest.getParentFile(), dest.getName() + PART_EXTENSION);
+    }
+
     private static void renameTo(Association as, File from, File dest) throws IOException {
         LOGGER.info("{}: M-RENAME {} to {}", as, from, dest);
         FileUtil.prepareToWriteFile(dest);
-        if (!from.renameTo(dest))
-            throw new IOException("Failed to rename " + from + " to " + dest);
+        if (!from.renameTo(dest)) {
+            // The temporary file can be on another volume
+            Files.move(from.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
-    private static Attributes parse(File file) throws IOException {
-        try (DicomInputStream in = new DicomInputStream(file)) {
-            in.setIncludeBulkData(IncludeBulkData.NO);
-            return in.readDataset(-1, Tag.PixelData);
+    /**
+     * Keeps the received bytes in memory until the limit is reached, then writes them in a file.
+     */
+    private static class HeaderOutputStream extends ByteArrayOutputStream {
+        private final Attributes fmi;
+        private final File spillFile;
+        private DicomOutputStream spillStream;
+
+        HeaderOutputStream(Attributes fmi, File spillFile) {
+            super(8192);
+            this.fmi = fmi;
+            this.spillFile = spillFile;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            try {
+                if (spillStream == null && count + len > MAX_HEADER_IN_MEMORY) {
+                    spillFile.getParentFile().mkdirs();
+                    spillStream = new DicomOutputStream(spillFile);
+                    spillStream.writeFileMetaInformation(fmi);
+                    spillStream.write(buf, 0, count);
+                    reset();
+                }
+                if (spillStream == null) {
+                    super.write(b, off, len);
+                } else {
+                    spillStream.write(b, off, len);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        boolean isSpilled() {
+            return spillStream != null;
+        }
+
+        File getSpillFile() {
+            return spillFile;
+        }
+
+        DicomOutputStream getSpillStream() {
+            return spillStream;
+        }
+
+        @Override
+        public void close() {
+            SafeClose.close(spillStream);
         }
     }
 
@@ -220,13 +666,265 @@ public class StoreSCP {
     public void setStorageFilePathFormat(String pattern) {
         if (StringUtil.hasText(pattern)) {
             this.filePathFormat = new AttributesFormat(pattern);
-            this.regex = Pattern.compile("\\{(.*?)\\}");
+            this.datasetInPath = false;
+            Matcher regexMatcher = Pattern.compile("\\{(.*?)\\}").matcher(pattern);
+            while (regexMatcher.find()) {
+                if (!regexMatcher.group(1).startsWith("0002")) {
+                    this.datasetInPath = true;
+                    break;
+                }
+            }
         } else {
             this.filePathFormat = null;
-            this.regex = null;
+            this.datasetInPath = false;
         }
     }
 
+    /**
+     * @param writeBehindWriter
+     *            the writer for storing the files in background, null for writing them in the DIMSE thread
+     */
+    public void setWriteBehindWriter(WriteBehindWriter writeBehindWriter) {
+        this.writeBehindWriter = writeBehindWriter;
+    }
+
+    public WriteBehindWriter getWriteBehindWriter() {
+        return writeBehindWriter;
+    }
+
+    /**
+     * @param backgroundCompressor
+     *            the service compressing the stored files after the response has been sent, null for keeping the
+     *            received transfer syntax
+     */
+    public void setBackgroundCompressor(BackgroundCompressor backgroundCompressor) {
+        this.backgroundCompressor = backgroundCompressor;
+    }
+
+    public BackgroundCompressor getBackgroundCompressor() {
+        return backgroundCompressor;
+    }
+
+    /**
+     * Set how the instances already stored are handled. The fingerprints of the last received instances are kept in
+     * memory (see setMaxReceivedInstances), the other stored instances are found in the instance index when defined.
+     * SKIP_SAME_HASH compares the data with the fingerprints in memory, SKIP_SAME_SIZE also uses the file size of the
+     * index. The instances that cannot be verified are overwritten.
+     *
+     * @param duplicatePolicy
+     *            the policy, null for OVERWRITE
+     */
+    public void setDuplicatePolicy(DuplicatePolicy duplicatePolicy) {
+        this.duplicatePolicy = duplicatePolicy == null ? DuplicatePolicy.OVERWRITE : duplicatePolicy;
+    }
+
+    public DuplicatePolicy getDuplicatePolicy() {
+        return duplicatePolicy;
+    }
+
+    /**
+     * @param maxReceivedInstances
+     *            the maximum number of fingerprints of received instances kept in memory for the duplicate policy
+     */
+    public void setMaxReceivedInstances(int maxReceivedInstances) {
+        this.maxReceivedInstances = Math.max(1, maxReceivedInstances);
+    }
+
+    public int getMaxReceivedInstances() {
+        return maxReceivedInstances;
+    }
+
+    /**
+     * @param storageVolumes
+     *            the root directories replacing the storage folder for the received files (the storage folder keeps
+     *            the temporary files), null for storing everything in the storage folder. The instance index, when
+     *            defined, is given to the volumes for finding the volume of the studies received before.
+     */
+    public void setStorageVolumes(StorageVolumes storageVolumes) {
+        if (storageVolumes != null) {
+            storageVolumes.setInstanceIndex(instanceIndex);
+        }
+        this.storageVolumes = storageVolumes;
+        StorageQuotaManager quota = storageQuotaManager;
+        if (quota != null) {
+            quota.setOtherRoots(storageVolumes == null ? null : storageVolumes.getRoots());
+        }
+    }
+
+    public StorageVolumes getStorageVolumes() {
+        return storageVolumes;
+    }
+
+    /**
+     * @param storeEventService
+     *            the service notified of the stored instances, null for no notification
+     */
+    public void setStoreEventService(StoreEventService storeEventService) {
+        this.storeEventService = storeEventService;
+    }
+
+    public StoreEventService getStoreEventService() {
+        return storeEventService;
+    }
+
+    /**
+     * @param studyContainerStore
+     *            the store appending the instances to a container file by study, null for writing a file by instance.
+     *            The instance index, the storage volumes and the background compression do not apply to the
+     *            containers.
+     */
+    public void setStudyContainerStore(StudyContainerStore studyContainerStore) {
+        this.studyContainerStore = studyContainerStore;
+    }
+
+    public StudyContainerStore getStudyContainerStore() {
+        return studyContainerStore;
+    }
+
+    /**
+     * @param bufferPool
+     *            the pool of buffers for writing the received data to the files, null for the default pool
+     */
+    public void setBufferPool(ByteBufferPool bufferPool) {
+        this.bufferPool = bufferPool == null ? ByteBufferPool.DEFAULT : bufferPool;
+    }
+
+    /**
+     * @param storageQuotaManager
+     *            the manager evicting the least recently used studies of the instance index, null for no eviction.
+     *            The received and retrieved studies are reported to the manager, and the evicted instances are
+     *            forgotten by the duplicate policy. The roots of the storage volumes are given to the manager.
+     */
+    public void setStorageQuotaManager(StorageQuotaManager storageQuotaManager) {
+        StorageQuotaManager old = this.storageQuotaManager;
+        if (old != null) {
+            old.removeEvictionListener(evictionListener);
+        }
+        this.storageQuotaManager = storageQuotaManager;
+        if (storageQuotaManager != null) {
+            storageQuotaManager.addEvictionListener(evictionListener);
+            StorageVolumes volumes = storageVolumes;
+            if (volumes != null) {
+                storageQuotaManager.setOtherRoots(volumes.getRoots());
+            }
+        }
+    }
+
+    public StorageQuotaManager getStorageQuotaManager() {
+        return storageQuotaManager;
+    }
+
+    /**
+     * @param storeMetrics
+     *            the counters of the received instances, can be shared by several StoreSCP. Null for no counting.
+     */
+    public void setStoreMetrics(StoreMetrics storeMetrics) {
+        this.storeMetrics = storeMetrics;
+    }
+
+    public StoreMetrics getStoreMetrics() {
+        return storeMetrics;
+    }
+
+    private void onStudyEvicted(String studyUID, List<IndexedInstance> instances) {
+        for (IndexedInstance instance : instances) {
+            receivedInstances.remove(instance.getSopInstanceUID());
+        }
+        StorageVolumes volumes = storageVolumes;
+        if (volumes != null) {
+            volumes.forgetStudy(studyUID);
+        }
+    }
+
+    private void onStudyAccessed(String studyUID) {
+        StorageQuotaManager quota = storageQuotaManager;
+        if (quota != null) {
+            quota.recordAccess(studyUID);
+        }
+    }
+
+    /**
+     * Forget the received instances (e.g. when files have been deleted from the storage folder)
+     */
+    public void clearReceivedInstances() {
+        receivedInstances.clear();
+    }
+
+    /**
+     * @param instanceIndex
+     *            the index updated when a file is stored, null for no index
+     */
+    public void setInstanceIndex(InstanceIndex instanceIndex) {
+        this.instanceIndex = instanceIndex;
+        StorageVolumes volumes = storageVolumes;
+        if (volumes != null) {
+            volumes.setInstanceIndex(instanceIndex);
+        }
+    }
+
+    public InstanceIndex getInstanceIndex() {
+        return instanceIndex;
+    }
+
+    /**
+     * Expose the C-FIND (patient, study, series and image levels) and C-GET services answering from the instance
+     * index, which must be set before.
+     *
+     * @param enabled
+     *            true for adding the services, false for removing them
+     */
+    public synchronized void setQueryRetrieveEnabled(boolean enabled) {
+        if (cfindSCP != null) {
+            serviceRegistry.removeDicomService(cfindSCP);
+            serviceRegistry.removeDicomService(cgetSCP);
+            removeQueryRetrieveCapabilities();
+            cfindSCP = null;
+            cgetSCP = null;
+        }
+        if (enabled) {
+            if (instanceIndex == null) {
+                throw new IllegalStateException("Query/Retrieve services require an instance index");
+            }
+            cfindSCP = new IndexCFindSCP(instanceIndex);
+            cgetSCP = new IndexCGetSCP(instanceIndex);
+            cgetSCP.setStudyAccessListener(this::onStudyAccessed);
+            serviceRegistry.addDicomService(cfindSCP);
+            serviceRegistry.addDicomService(cgetSCP);
+            for (String cuid : IndexCFindSCP.SOP_CLASSES) {
+                addQueryRetrieveCapability(new TransferCapability(null, cuid, TransferCapability.Role.SCP,
+                    UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian));
+            }
+            for (String cuid : IndexCGetSCP.SOP_CLASSES) {
+                addQueryRetrieveCapability(new TransferCapability(null, cuid, TransferCapability.Role.SCP,
+                    UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian));
+            }
+            // C-GET sends the files on the same association (SCU role of the Storage SOP Classes)
+            addQueryRetrieveCapability(new TransferCapability(null, "*", TransferCapability.Role.SCU, "*"));
+        }
+    }
+
+    private void addQueryRetrieveCapability(TransferCapability tc) {
+        queryRetrieveCapabilities.put(tc, ae.addTransferCapability(tc));
+    }
+
+    private void removeQueryRetrieveCapabilities() {
+        for (Map.Entry<TransferCapability, TransferCapability> entry : queryRetrieveCapabilities.entrySet()) {
+            TransferCapability tc = entry.getKey();
+            // Keep the capabilities configured by the application in the meantime
+            if (ae.getTransferCapabilityFor(tc.getSopClass(), tc.getRole()) == tc) {
+                ae.removeTransferCapabilityFor(tc.getSopClass(), tc.getRole());
+                if (entry.getValue() != null) {
+                    ae.addTransferCapability(entry.getValue());
+                }
+            }
+        }
+        queryRetrieveCapabilities.clear();
+    }
+
+    public synchronized boolean isQueryRetrieveEnabled() {
+        return cfindSCP != null;
+    }
+
     public void setStatus(int status) {
         this.status = status;
     }
@@ -40,6 +40,7 @@ package org.dcm4che3.tool.storescu;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -87,6 +88,8 @@ import org.weasis.dicom.param.DicomState;
 import org.weasis.dicom.util.ForwardUtil;
 import org.weasis.dicom.util.ServiceUtil;
 import org.weasis.dicom.util.ServiceUtil.ProgressStatus;
+import org.weasis.dicom.util.TranscodedDataCache;
+import org.weasis.dicom.util.TranscodingService;
 import org.xml.sax.SAXException;
 
 /**
@@ -119,6 +122,7 @@ public class StoreSCU implements AutoCloseable {
 
     private final AttributeEditor attributesEditor;
     private final DicomState state;
+    private TranscodedDataCache transcodedDataCache;
 
     private RSPHandlerFactory rspHandlerFactory = file -> new DimseRSPHandler(as.nextMessageID()) {
 
@@ -147,6 +151,14 @@ public class StoreSCU implements AutoCloseable {
         this.attributesEditor = attributesEditor;
     }
 
+    /**
+     * @param transcodedDataCache
+     *            the cache of the decompressed instances shared with other send operations, null for no cache
+     */
+    public void setTranscodedDataCache(TranscodedDataCache transcodedDataCache) {
+        this.transcodedDataCache = transcodedDataCache;
+    }
+
     public void setRspHandlerFactory(RSPHandlerFactory rspHandlerFactory) {
         this.rspHandlerFactory = rspHandlerFactory;
     }
@@ -309,6 +321,17 @@ public class StoreSCU implements AutoCloseable {
                 in = new FileInputStream(f);
                 in.skip(fmiEndPos);
                 dataWriter = new InputStreamDataWriter(in);
+            } else if (transcodedDataCache != null && uidSuffix == null && attrs.isEmpty()
+                && attributesEditor == null) {
+                // Only the transfer syntax changes, the decompressed data can be shared with other destinations
+                byte[] encoded = transcodedDataCache.getOrEncode(iuid, ts, () -> {
+                    try (DicomInputStream dis = new DicomInputStream(f)) {
+                        dis.setIncludeBulkData(IncludeBulkData.URI);
+                        return TranscodingService.encode(dis.readDataset(-1, -1), filets, ts);
+                    }
+                });
+                noChange = true;
+                dataWriter = new InputStreamDataWriter(new ByteArrayInputStream(encoded));
             } else {
                 in = new DicomInputStream(f);
                 ((DicomInputStream) in).setIncludeBulkData(IncludeBulkData.URI);
@@ -11,9 +11,11 @@
 package org.weasis.dicom.op;
 
 import java.text.MessageFormat;
+import java.util.function.Consumer;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.VR;
 import org.dcm4che3.net.Connection;
@@ -21,6 +23,7 @@ import org.dcm4che3.net.Status;
 import org.dcm4che3.net.service.QueryRetrieveLevel;
 import org.dcm4che3.tool.findscu.FindSCU;
 import org.dcm4che3.tool.findscu.FindSCU.InformationModel;
+import org.dcm4che3.tool.findscu.FindSCU.ResultHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.weasis.core.util.FileUtil;
@@ -112,6 +115,45 @@ public class CFind {
      */
     public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
         int cancelAfter, QueryRetrieveLevel level, DicomParam... keys) {
+        return process(params, callingNode, calledNode, cancelAfter, level, null, keys);
+    }
+
+    /**
+     * Query with the matches delivered to a handler as they arrive. The matches are not kept in the returned
+     * DicomState, so the memory does not depend on the number of matches.
+     *
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param cancelAfter
+     *            cancel the query request after the receive of the specified number of matches.
+     * @param level
+     *            specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot, PatientStudyOnly model.
+     * @param handler
+     *            the handler receiving the matches (from the thread of the association), returns false for canceling
+     *            the query. Null for keeping the matches in the DicomState.
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return The DicomSate instance which contains the DICOM status, the error message and the progression.
+     */
+    public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        int cancelAfter, QueryRetrieveLevel level, ResultHandler handler, DicomParam... keys) {
+        return process(params, callingNode, calledNode, cancelAfter, level, handler, null, keys);
+    }
+
+    /**
+     * Same as process() with a handler, giving access to the FindSCU for aborting the query from another thread.
+     *
+     * @param findSCUConsumer
+     *            receives the FindSCU before the association is opened (e.g. for calling abort() at a deadline), can
+     *            be null
+     */
+    public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        int cancelAfter, QueryRetrieveLevel level, ResultHandler handler, Consumer<FindSCU> findSCUConsumer,
+        DicomParam... keys) {
         if (callingNode == null || calledNode == null) {
             throw new IllegalArgumentException("callingNode or calledNode cannot be null!");
         }
@@ -139,7 +181,13 @@ public class CFind {
                 addAttributes(findSCU.getKeys(), p);
             }
             findSCU.setCancelAfter(cancelAfter);
+            findSCU.setResultHandler(handler);
             findSCU.setPriority(options.getPriority());
+            findSCU.setReturnKeysOnly(options.isReturnKeysOnly());
+
+            if (findSCUConsumer != null) {
+                findSCUConsumer.accept(findSCU);
+            }
 
             service.start();
             try {
@@ -150,10 +198,10 @@ public class CFind {
                 findSCU.query();
                 ServiceUtil.forceGettingAttributes(dcmState, findSCU);
                 long t3 = System.currentTimeMillis();
-                String timeMsg =
-                    MessageFormat.format("DICOM C-Find connected in {2}ms from {0} to {1}. Query in {3}ms.",
-                        findSCU.getAAssociateRQ().getCallingAET(), findSCU.getAAssociateRQ().getCalledAET(), t2 - t1,
-                        t3 - t2);
+                String timeMsg = MessageFormat.format("DICOM C-Find connected in {2}ms from {0} to {1}. "
+                    + "Query in {3}ms (first result in {4}ms, {5} matches).",
+                    findSCU.getAAssociateRQ().getCallingAET(), findSCU.getAAssociateRQ().getCalledAET(), t2 - t1,
+                    t3 - t2, findSCU.getFirstResultLatency(), findSCU.getNumberOfMatches());
                 return DicomState.buildMessage(dcmState, timeMsg, null);
             } catch (Exception e) {
                 LOGGER.error("findscu", e);
@@ -170,7 +218,42 @@ public class CFind {
         }
     }
 
-    private static InformationModel getInformationModel(AdvancedParams options) {
+    /**
+     * Query with the matches read from an Iterator. The matches are buffered in a bounded queue: when the queue is
+     * full the reading of the responses is suspended, which slows down the sender. The query runs in a background
+     * thread until the last match is read or until the CFindResults is closed. When no match is read during one
+     * minute while the queue is full, the query is canceled (see CFindResults.isTimedOut()).
+     *
+     * <pre>
+     * try (CFindResults results = CFind.stream(params, callingNode, calledNode, QueryRetrieveLevel.STUDY, 100, keys)) {
+     *     while (results.hasNext()) {
+     *         Attributes match = results.next();
+     *     }
+     * }
+     * </pre>
+     *
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param level
+     *            specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot, PatientStudyOnly model.
+     * @param queueSize
+     *            the maximum number of matches waiting to be read
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return the matches, must be closed
+     */
+    public static CFindResults stream(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        QueryRetrieveLevel level, int queueSize, DicomParam... keys) {
+        CFindResults results = new CFindResults(queueSize);
+        results.start(h -> process(params, callingNode, calledNode, 0, level, h, keys));
+        return results;
+    }
+
+    static InformationModel getInformationModel(AdvancedParams options) {
         Object model = options.getInformationModel();
         if (model instanceof InformationModel) {
             return (InformationModel) model;
@@ -178,6 +261,31 @@ public class CFind {
         return InformationModel.StudyRoot;
     }
 
+    /**
+     * Add the keys, the ones having parent sequences (e.g. the Scheduled Procedure Step of a worklist query) are added
+     * to the first item of the sequences.
+     */
+    public static void addKeys(Attributes attrs, DicomParam... keys) {
+        for (DicomParam p : keys) {
+            int[] pSeq = p.getParentSeqTags();
+            if (pSeq == null || pSeq.length == 0) {
+                addAttributes(attrs, p);
+            } else {
+                Attributes parent = attrs;
+                for (int value : pSeq) {
+                    Sequence lastSeq = parent.getSequence(value);
+                    if (lastSeq == null || lastSeq.isEmpty()) {
+                        lastSeq = parent.newSequence(value, 1);
+                        lastSeq.add(new Attributes());
+                    }
+                    parent = lastSeq.get(0);
+                }
+
+                addAttributes(parent, p);
+            }
+        }
+    }
+
     public static void addAttributes(Attributes attrs, DicomParam param) {
         int tag = param.getTag();
         String[] ss = param.getValues();
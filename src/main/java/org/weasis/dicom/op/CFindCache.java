@@ -0,0 +1,244 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * Cache of the C-FIND results. The key is made of the calling and called nodes, the information model, the level and
+ * the query keys (sorted by tag, values trimmed). Only the successful queries are cached, during the time-to-live and
+ * within the maximum number of entries (least recently used evicted first). Concurrent identical queries wait for the
+ * same C-FIND.
+ * <p>
+ * Each call returns a new DicomState with copies of the matches, which can be modified by the caller.
+ */
+public class CFindCache {
+
+    private static class Entry {
+        final DicomState state;
+        final long expiration;
+
+        Entry(DicomState state, long expiration) {
+            this.state = state;
+            this.expiration = expiration;
+        }
+    }
+
+    private final long ttlNanos;
+    private final Map<String, Entry> entries;
+    private final Map<String, CompletableFuture<DicomState>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @param ttl
+     *            the time-to-live of a result
+     * @param unit
+     *            the unit of the time-to-live
+     * @param maxEntries
+     *            the maximum number of results kept in the cache
+     */
+    public CFindCache(long ttl, TimeUnit unit, int maxEntries) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Same as CFind.process() but returns the cached result when available.
+     *
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param level
+     *            specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot, PatientStudyOnly model.
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error message and the
+     *         progression.
+     */
+    public DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        QueryRetrieveLevel level, DicomParam... keys) {
+        if (callingNode == null || calledNode == null) {
+            throw new IllegalArgumentException("callingNode or calledNode cannot be null!");
+        }
+        String key = buildKey(params, callingNode, calledNode, level, keys);
+        DicomState cached = getValid(key);
+        if (cached != null) {
+            hits.increment();
+            return copy(cached);
+        }
+
+        CompletableFuture<DicomState> future = new CompletableFuture<>();
+        CompletableFuture<DicomState> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            coalesced.increment();
+            return copy(join(running));
+        }
+        misses.increment();
+        try {
+            DicomState state = CFind.process(params, callingNode, calledNode, 0, level, keys);
+            if (state.getStatus() == Status.Success) {
+                put(key, state);
+            }
+            future.complete(state);
+            return copy(state);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key);
+        }
+    }
+
+    void put(String key, DicomState state) {
+        synchronized (entries) {
+            entries.put(key, new Entry(state, System.nanoTime() + ttlNanos));
+        }
+    }
+
+    DicomState getValid(String key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.expiration - System.nanoTime() < 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.state;
+        }
+    }
+
+    private static DicomState join(CompletableFuture<DicomState> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new DicomState(Status.UnableToProcess, "DICOM Find interrupted", null);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
+
+    private static DicomState copy(DicomState state) {
+        DicomState result = new DicomState(state.getStatus(), state.getMessage(), null);
+        synchronized (state.getDicomRSP()) {
+            for (Attributes attrs : state.getDicomRSP()) {
+                result.addDicomRSP(new Attributes(attrs));
+            }
+        }
+        return result;
+    }
+
+    static String buildKey(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        QueryRetrieveLevel level, DicomParam... keys) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(callingNode.getAet()).append('|');
+        buf.append(calledNode.getAet()).append('@').append(calledNode.getHostname()).append(':')
+            .append(calledNode.getPort()).append('|');
+        buf.append(params == null ? null : params.getInformationModel()).append('|').append(level);
+
+        List<String> normalized = new ArrayList<>(keys.length);
+        for (DicomParam p : keys) {
+            StringBuilder k = new StringBuilder();
+            int[] parents = p.getParentSeqTags();
+            if (parents != null) {
+                for (int tag : parents) {
+                    k.append(String.format("%08X", tag)).append('/');
+                }
+            }
+            k.append(String.format("%08X", p.getTag())).append('=');
+            String[] values = p.getValues();
+            if (values != null) {
+                String[] vals = new String[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    vals[i] = values[i] == null ? "" : values[i].trim();
+                }
+                k.append(String.join("\\", vals));
+            }
+            normalized.add(k.toString());
+        }
+        normalized.sort(null);
+        for (String k : normalized) {
+            buf.append('|').append(k);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Remove all the cached results
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Remove the cached results of a called node
+     */
+    public void invalidate(DicomNode calledNode) {
+        String node = '|' + calledNode.getAet() + '@' + calledNode.getHostname() + ':' + calledNode.getPort() + '|';
+        synchronized (entries) {
+            entries.keySet().removeIf(k -> k.contains(node));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of queries which have waited for an identical query in progress
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+}
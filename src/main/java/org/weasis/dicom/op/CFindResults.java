@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.tool.findscu.FindSCU.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * Iterator on the matches of a C-FIND running in a background thread (see CFind.stream). A match is not retained once
+ * it has been read.
+ * <p>
+ * When no match is read during the read timeout while the queue is full, the query is canceled and the iterator ends
+ * after the matches already read, so the association is never blocked by an abandoned iterator.
+ */
+public class CFindResults implements Iterator<Attributes>, AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CFindResults.class);
+
+    public static final long DEFAULT_READ_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    private static final Attributes END = new Attributes(0);
+
+    private final BlockingQueue<Attributes> queue;
+    private final long readTimeoutMillis;
+    private volatile boolean closed;
+    private volatile boolean timedOut;
+    private volatile DicomState state;
+    private volatile long startTime;
+    private volatile long firstResultTime;
+    private Attributes next;
+
+    CFindResults(int queueSize) {
+        this(queueSize, DEFAULT_READ_TIMEOUT);
+    }
+
+    CFindResults(int queueSize, long readTimeoutMillis) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.readTimeoutMillis = Math.max(1, readTimeoutMillis);
+    }
+
+    void start(Function<ResultHandler, DicomState> query) {
+        startTime = System.nanoTime();
+        Thread thread = new Thread(() -> {
+            try {
+                state = query.apply(this::offer);
+            } finally {
+                putEnd();
+            }
+        }, "cfind-results");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean offer(Attributes match) {
+        if (closed || timedOut) {
+            return false;
+        }
+        if (firstResultTime == 0) {
+            firstResultTime = System.nanoTime();
+        }
+        try {
+            // Blocks the association until the consumer reads the matches
+            if (!queue.offer(match, readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timedOut = true;
+                LOGGER.warn("No C-FIND match read during {} ms, cancel the query", readTimeoutMillis);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !closed;
+    }
+
+    private void putEnd() {
+        try {
+            if (!closed && !timedOut && queue.offer(END, readTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Discard the pending matches, so a late consumer reads the end instead of blocking
+        queue.clear();
+        queue.offer(END);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            try {
+                next = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for a C-FIND match", e);
+            }
+        }
+        return next != END;
+    }
+
+    @Override
+    public Attributes next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Attributes match = next;
+        next = null;
+        return match;
+    }
+
+    /**
+     * @return true when the query has been canceled because the matches were not read during the read timeout
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return the final state of the query (status and message), null while the query is running
+     */
+    public DicomState getState() {
+        return state;
+    }
+
+    /**
+     * @return the time in milliseconds between the start of the query and its first match, -1 when no match has been
+     *         received
+     */
+    public long getFirstResultLatency() {
+        long first = firstResultTime;
+        return first == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(first - startTime);
+    }
+
+    /**
+     * Cancel the query when still running and discard the pending matches.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+        next = END;
+    }
+}
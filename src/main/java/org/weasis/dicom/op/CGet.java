@@ -35,6 +35,7 @@ import org.weasis.dicom.param.DicomNode;
 import org.weasis.dicom.param.DicomParam;
 import org.weasis.dicom.param.DicomProgress;
 import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.InstanceIndex;
 import org.weasis.dicom.util.ServiceUtil;
 
 public class CGet {
@@ -96,6 +97,28 @@ public class CGet {
      */
     public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
         DicomProgress progress, File outputDir, URL sopClassURL, DicomParam... keys) {
+        return process(params, callingNode, calledNode, progress, outputDir, sopClassURL, null, keys);
+    }
+
+    /**
+     * @param params
+     *            the optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param progress
+     *            the progress handler
+     * @param instanceIndex
+     *            the index updated with the retrieved files, null for no index. A StorageQuotaManager of this index
+     *            keeps the output folder under its quota.
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error message and the
+     *         progression.
+     */
+    public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        DicomProgress progress, File outputDir, URL sopClassURL, InstanceIndex instanceIndex, DicomParam... keys) {
         if (callingNode == null || calledNode == null || outputDir == null) {
             throw new IllegalArgumentException("callingNode, calledNode or outputDir cannot be null!");
         }
@@ -117,6 +140,7 @@ public class CGet {
             getSCU.setPriority(options.getPriority());
 
             getSCU.setStorageDirectory(outputDir);
+            getSCU.setInstanceIndex(instanceIndex);
 
             getSCU.setInformationModel(getInformationModel(options), options.getTsuidOrder(),
                 options.getQueryOptions().contains(QueryOption.RELATIONAL));
@@ -10,12 +10,15 @@
  *******************************************************************************/
 package org.weasis.dicom.op;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
-import java.util.Map.Entry;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.Set;
 
@@ -24,7 +27,6 @@ import org.dcm4che3.data.ElementDictionary;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.data.UID;
 import org.dcm4che3.data.VR;
-import org.dcm4che3.imageio.codec.Decompressor;
 import org.dcm4che3.io.DicomInputStream;
 import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
 import org.dcm4che3.net.ApplicationEntity;
@@ -65,6 +67,7 @@ import org.weasis.dicom.util.ForwardUtil;
 import org.weasis.dicom.util.ServiceUtil;
 import org.weasis.dicom.util.ServiceUtil.ProgressStatus;
 import org.weasis.dicom.util.StoreFromStreamSCU;
+import org.weasis.dicom.util.TranscodingService;
 
 public class CGetForward implements AutoCloseable {
 
@@ -102,6 +105,7 @@ public class CGetForward implements AutoCloseable {
     private final StoreFromStreamSCU streamSCU;
     private final DeviceOpService streamSCUService;
     private final AttributeEditor attributesEditor;
+    private TranscodingService transcoder = new TranscodingService();
 
     private final BasicCStoreSCP storageSCP = new BasicCStoreSCP("*") {
         class AbortException extends IllegalStateException {
@@ -137,20 +141,23 @@ public class CGetForward implements AutoCloseable {
                 } else {
                     // Handle dynamically new SOPClassUID
                     Set<String> tss = streamSCU.getAssociation().getTransferSyntaxesFor(cuid);
-                    if (!tss.contains(tsuid)) {
-                        streamSCU.close();
-                    }
+                    boolean newContext = !tss.contains(tsuid) && !streamSCU.isProposed(cuid, tsuid);
 
                     // Add Presentation Context for the association
-                    streamSCU.addData(cuid, tsuid);
+                    newContext &= streamSCU.addData(cuid, tsuid);
 
                     if (!streamSCU.getAssociation().isReadyForDataTransfer()) {
                         // If connection has been closed just reopen
                         streamSCU.open();
+                    } else if (newContext) {
+                        // Open the new association before draining the current one
+                        transcoder.flush();
+                        streamSCU.reopen();
                     }
                 }
 
                 DicomInputStream in = null;
+                boolean transcodingTask = false;
                 try {
                     if (!streamSCU.getAssociation().isReadyForDataTransfer()) {
                         throw new IllegalStateException("Association not ready for transfer.");
@@ -179,11 +186,16 @@ public class CGetForward implements AutoCloseable {
                         }
 
                         if (!supportedTsuid.equals(tsuid)) {
-                            Decompressor.decompress(attributes, tsuid);
+                            // Decode in the transcoding pool, the release of the source is not delayed
+                            submitTranscoding(attributes, cuid, iuid, tsuid, supportedTsuid, in);
+                            transcodingTask = true;
+                            return;
                         }
                         dataWriter = new DataWriterAdapter(attributes);
                     }
 
+                    // Keep the order of the instances which are being transcoded
+                    transcoder.flush();
                     streamSCU.getAssociation().cstore(cuid, iuid, priority, dataWriter, tsuid,
                         streamSCU.getRspHandlerFactory().createDimseRSPHandler());
                 } catch (AbortException e) {
@@ -198,8 +210,10 @@ public class CGetForward implements AutoCloseable {
                         streamSCU.getNumberOfSuboperations());
                 } finally {
                     FileUtil.safeClose(in);
-                    // Force to clean if tmp bulk files
-                    ServiceUtil.safeClose(in);
+                    if (!transcodingTask) {
+                        // Force to clean if tmp bulk files
+                        ServiceUtil.safeClose(in);
+                    }
                 }
 
             } catch (Exception e) {
@@ -208,6 +222,21 @@ public class CGetForward implements AutoCloseable {
         }
     };
 
+    private void submitTranscoding(Attributes attributes, String cuid, String iuid, String tsuid,
+        String supportedTsuid, DicomInputStream bulkDataStream) throws InterruptedException {
+        // The modified instances cannot be shared with other destinations
+        String cacheIuid = attributesEditor == null ? iuid : null;
+        transcoder.submit(attributes, cacheIuid, tsuid, supportedTsuid,
+            (bytes, ts) -> streamSCU.getAssociation().cstore(cuid, iuid, priority,
+                new InputStreamDataWriter(new ByteArrayInputStream(bytes)), ts,
+                streamSCU.getRspHandlerFactory().createDimseRSPHandler()),
+            e -> {
+                LOGGER.error("Error when transcoding to the final destination", e);
+                ServiceUtil.notifyProgession(streamSCU.getState(), iuid, cuid, Status.ProcessingFailure,
+                    ProgressStatus.FAILED, streamSCU.getNumberOfSuboperations());
+            }, () -> ServiceUtil.safeClose(bulkDataStream));
+    }
+
     public CGetForward(DicomNode callingNode, DicomNode destinationNode, DicomProgress progress) throws IOException {
         this(callingNode, destinationNode, progress, null);
     }
@@ -240,7 +269,7 @@ public class CGetForward implements AutoCloseable {
         device.setDimseRQHandler(createServiceRegistry());
 
         this.streamSCU = new StoreFromStreamSCU(forwardParams, callingNode, destinationNode, progress);
-        this.streamSCUService = new DeviceOpService(streamSCU.getDevice());
+        this.streamSCUService = new DeviceOpService(streamSCU.getDevice(), true);
     }
 
     public ApplicationEntity getApplicationEntity() {
@@ -273,6 +302,18 @@ public class CGetForward implements AutoCloseable {
         return serviceRegistry;
     }
 
+    /**
+     * @param transcoder
+     *            the service decoding the instances not supported by the final destination
+     */
+    public void setTranscodingService(TranscodingService transcoder) {
+        this.transcoder = Objects.requireNonNull(transcoder);
+    }
+
+    public TranscodingService getTranscodingService() {
+        return transcoder;
+    }
+
     public final void setPriority(int priority) {
         this.priority = priority;
     }
@@ -315,6 +356,7 @@ public class CGetForward implements AutoCloseable {
             as.waitForOutstandingRSP();
             as.release();
         }
+        transcoder.flush();
         streamSCU.close();
     }
 
@@ -384,7 +426,8 @@ public class CGetForward implements AutoCloseable {
      */
     public static DicomState processStudy(DicomNode callingNode, DicomNode calledNode, DicomNode destinationNode,
         DicomProgress progress, String studyUID) {
-        return process(null, null, callingNode, calledNode, destinationNode, progress, "STUDY", studyUID, null);
+        return process(null, null, callingNode, calledNode, destinationNode, progress, "STUDY", studyUID, null,
+            false);
     }
 
     /**
@@ -408,7 +451,7 @@ public class CGetForward implements AutoCloseable {
     public static DicomState processStudy(AdvancedParams getParams, AdvancedParams forwardParams, DicomNode callingNode,
         DicomNode calledNode, DicomNode destinationNode, DicomProgress progress, String studyUID) {
         return process(getParams, forwardParams, callingNode, calledNode, destinationNode, progress, "STUDY", studyUID,
-            null);
+            null, false);
     }
 
     /**
@@ -435,7 +478,37 @@ public class CGetForward implements AutoCloseable {
         DicomNode calledNode, DicomNode destinationNode, DicomProgress progress, String studyUID,
         AttributeEditor attributesEditor) {
         return process(getParams, forwardParams, callingNode, calledNode, destinationNode, progress, "STUDY", studyUID,
-            attributesEditor);
+            attributesEditor, false);
+    }
+
+    /**
+     * @param getParams
+     *            the C-GET optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param forwardParams
+     *            the C-Store optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param destinationNode
+     *            the final destination DICOM node configuration
+     * @param progress
+     *            the progress handler
+     * @param studyUID
+     *            the study instance UID to retrieve
+     * @param attributesEditor
+     *            the editor for modifying attributes on the fly. IT can be null.
+     * @param preProposeStorageContexts
+     *            true for proposing to the destination the storage SOP Classes accepted by the C-GET SCP before the
+     *            first instance (see preProposeStorageContexts())
+     * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error message and the
+     *         progression.
+     */
+    public static DicomState processStudy(AdvancedParams getParams, AdvancedParams forwardParams, DicomNode callingNode,
+        DicomNode calledNode, DicomNode destinationNode, DicomProgress progress, String studyUID,
+        AttributeEditor attributesEditor, boolean preProposeStorageContexts) {
+        return process(getParams, forwardParams, callingNode, calledNode, destinationNode, progress, "STUDY", studyUID,
+            attributesEditor, preProposeStorageContexts);
     }
 
     /**
@@ -454,7 +527,8 @@ public class CGetForward implements AutoCloseable {
      */
     public static DicomState processSeries(DicomNode callingNode, DicomNode calledNode, DicomNode destinationNode,
         DicomProgress progress, String seriesUID) {
-        return process(null, null, callingNode, calledNode, destinationNode, progress, "SERIES", seriesUID, null);
+        return process(null, null, callingNode, calledNode, destinationNode, progress, "SERIES", seriesUID, null,
+            false);
     }
 
     /**
@@ -479,7 +553,7 @@ public class CGetForward implements AutoCloseable {
         DicomNode callingNode, DicomNode calledNode, DicomNode destinationNode, DicomProgress progress,
         String seriesUID) {
         return process(getParams, forwardParams, callingNode, calledNode, destinationNode, progress, "SERIES",
-            seriesUID, null);
+            seriesUID, null, false);
     }
 
     /**
@@ -506,12 +580,42 @@ public class CGetForward implements AutoCloseable {
         DicomNode callingNode, DicomNode calledNode, DicomNode destinationNode, DicomProgress progress,
         String seriesUID, AttributeEditor attributesEditor) {
         return process(getParams, forwardParams, callingNode, calledNode, destinationNode, progress, "SERIES",
-            seriesUID, attributesEditor);
+            seriesUID, attributesEditor, false);
+    }
+
+    /**
+     * @param getParams
+     *            the C-GET optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param forwardParams
+     *            the C-Store optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param destinationNode
+     *            the final destination DICOM node configuration
+     * @param progress
+     *            the progress handler
+     * @param seriesUID
+     *            the series instance UID to retrieve
+     * @param attributesEditor
+     *            the editor for modifying attributes on the fly (can be Null)
+     * @param preProposeStorageContexts
+     *            true for proposing to the destination the storage SOP Classes accepted by the C-GET SCP before the
+     *            first instance (see preProposeStorageContexts())
+     * @return The DicomSate instance which contains the DICOM response, the DICOM status, the error message and the
+     *         progression.
+     */
+    public static DicomState processSeries(AdvancedParams getParams, AdvancedParams forwardParams,
+        DicomNode callingNode, DicomNode calledNode, DicomNode destinationNode, DicomProgress progress,
+        String seriesUID, AttributeEditor attributesEditor, boolean preProposeStorageContexts) {
+        return process(getParams, forwardParams, callingNode, calledNode, destinationNode, progress, "SERIES",
+            seriesUID, attributesEditor, preProposeStorageContexts);
     }
 
     private static DicomState process(AdvancedParams getParams, AdvancedParams forwardParams, DicomNode callingNode,
         DicomNode calledNode, DicomNode destinationNode, DicomProgress progress, String queryRetrieveLevel,
-        String queryUID, AttributeEditor attributesEditor) {
+        String queryUID, AttributeEditor attributesEditor, boolean preProposeStorageContexts) {
         if (callingNode == null || calledNode == null || destinationNode == null) {
             throw new IllegalArgumentException("callingNode, calledNode or destinationNode cannot be null!");
         }
@@ -552,6 +656,9 @@ public class CGetForward implements AutoCloseable {
                 DicomState dcmState = forward.getState();
                 long t1 = System.currentTimeMillis();
                 forward.open();
+                if (preProposeStorageContexts) {
+                    forward.preProposeStorageContexts();
+                }
                 long t2 = System.currentTimeMillis();
                 forward.retrieve();
                 ServiceUtil.forceGettingAttributes(dcmState, forward);
@@ -568,6 +675,7 @@ public class CGetForward implements AutoCloseable {
             } finally {
                 FileUtil.safeClose(forward);
                 service.stop();
+                forward.getTranscodingService().shutdown();
                 forward.getStreamSCUService().stop();
             }
         } catch (Exception e) {
@@ -577,7 +685,31 @@ public class CGetForward implements AutoCloseable {
         }
     }
 
-    private static void configureRelatedSOPClass(CGetForward getSCU, URL url) throws IOException {
+    /**
+     * Propose to the destination the storage SOP Classes accepted by the C-GET SCP, which are the only ones it can
+     * send, so that a new SOP Class arriving during the transfer doesn't require a new association. Must be called
+     * after open() and before retrieve(). By default, the presentation contexts are added when the instances arrive.
+     *
+     * @return the number of presentation contexts proposed to the destination
+     */
+    public int preProposeStorageContexts() {
+        Map<String, String[]> accepted = new LinkedHashMap<>();
+        if (as != null) {
+            for (PresentationContext pc : rq.getPresentationContexts()) {
+                String cuid = pc.getAbstractSyntax();
+                if (rq.getRoleSelectionFor(cuid) != null && !accepted.containsKey(cuid)) {
+                    Set<String> tss = as.getTransferSyntaxesFor(cuid);
+                    if (!tss.isEmpty()) {
+                        accepted.put(cuid, tss.toArray(new String[0]));
+                    }
+                }
+            }
+        }
+        return streamSCU.preProposeStorageContexts(accepted);
+    }
+
+    private static Map<String, String[]> configureRelatedSOPClass(CGetForward getSCU, URL url) {
+        Map<String, String[]> tcs = new LinkedHashMap<>();
         Properties p = new Properties();
         try {
             if (url == null) {
@@ -587,20 +719,24 @@ public class CGetForward implements AutoCloseable {
                     p.load(in);
                 }
             }
-            for (Entry<Object, Object> entry : p.entrySet()) {
-                configureStorageSOPClass(getSCU, (String) entry.getKey(), (String) entry.getValue());
+            for (String key : p.stringPropertyNames()) {
+                configureStorageSOPClass(getSCU, tcs, key, p.getProperty(key));
             }
         } catch (Exception e) {
             LOGGER.error("Read sop classes", e);
         }
+        return tcs;
     }
 
-    private static void configureStorageSOPClass(CGetForward getSCU, String cuid, String tsuids) {
+    private static void configureStorageSOPClass(CGetForward getSCU, Map<String, String[]> tcs, String cuid,
+        String tsuids) {
         String[] ts = StringUtils.split(tsuids, ';');
         for (int i = 0; i < ts.length; i++) {
-            ts[i] = CLIUtils.toUID(ts[i]);
+            ts[i] = CLIUtils.toUID(ts[i].trim());
         }
-        getSCU.addOfferedStorageSOPClass(CLIUtils.toUID(cuid), ts);
+        String uid = CLIUtils.toUID(cuid);
+        getSCU.addOfferedStorageSOPClass(uid, ts);
+        tcs.put(uid, ts);
     }
 
     private static InformationModel getInformationModel(AdvancedParams options) {
@@ -156,6 +156,7 @@ public class CStore {
             options.configureTLS(conn, remote);
 
             storeSCU.setAttributes(new Attributes());
+            storeSCU.setTranscodedDataCache(storeOptions.getTranscodedDataCache());
 
             if (storeOptions.isExtendNegociation()) {
                 configureRelatedSOPClass(storeSCU, storeOptions.getExtendSopClassesURL());
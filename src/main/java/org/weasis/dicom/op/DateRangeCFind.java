@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.dcm4che3.tool.findscu.FindSCU.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * C-FIND on a large StudyDate range, split into smaller ranges queried in parallel. When the number of matches of a
+ * range reaches the limit of the archive (or when the archive answers Out of Resources), the range is split in two
+ * and queried again. The matches are delivered as they arrive, deduplicated by the UID of the level.
+ */
+public class DateRangeCFind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DateRangeCFind.class);
+
+    static class Chunk {
+        final LocalDate from;
+        final LocalDate to;
+        volatile int status;
+        volatile int matches;
+
+        Chunk(LocalDate from, LocalDate to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        long days() {
+            return ChronoUnit.DAYS.between(from, to) + 1;
+        }
+
+        boolean isTruncated(int maxMatches) {
+            return matches >= maxMatches || status == Status.OutOfResources;
+        }
+    }
+
+    private DateRangeCFind() {
+    }
+
+    /**
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param level
+     *            specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot, PatientStudyOnly model.
+     * @param from
+     *            the first study date
+     * @param to
+     *            the last study date (included)
+     * @param maxMatches
+     *            the maximum number of matches returned by the archive for a query
+     * @param maxParallel
+     *            the maximum number of concurrent associations
+     * @param handler
+     *            receives the deduplicated matches (never concurrently), returns false for stopping all the queries
+     * @param keys
+     *            the matching and returning keys, without StudyDate. DicomParam with no value is a returning key.
+     * @return the state of the whole query (status and message, without matches). The status is Out of Resources
+     *         when a single day exceeds the limit of the archive.
+     */
+    public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        QueryRetrieveLevel level, LocalDate from, LocalDate to, int maxMatches, int maxParallel,
+        ResultHandler handler, DicomParam... keys) {
+        if (callingNode == null || calledNode == null || from == null || to == null || handler == null) {
+            throw new IllegalArgumentException("callingNode, calledNode, dates or handler cannot be null!");
+        }
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("The end date is before the start date");
+        }
+        QueryRetrieveLevel qrLevel = level == null ? QueryRetrieveLevel.STUDY : level;
+        int parallel = Math.max(1, maxParallel);
+        Set<String> delivered = new HashSet<>();
+        AtomicBoolean stopped = new AtomicBoolean();
+        AtomicInteger total = new AtomicInteger();
+        List<Chunk> incomplete = new ArrayList<>();
+        int failed = 0;
+        int queries = 0;
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallel, r -> {
+            Thread t = new Thread(r, "date-range-cfind");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            CompletionService<Chunk> service = new ExecutorCompletionService<>(executor);
+            int outstanding = 0;
+            for (Chunk chunk : split(new Chunk(from, to), parallel)) {
+                service.submit(() -> query(params, callingNode, calledNode, level, qrLevel, chunk, handler, delivered,
+                    stopped, total, keys));
+                outstanding++;
+            }
+            while (outstanding > 0) {
+                Chunk chunk = service.take().get();
+                outstanding--;
+                queries++;
+                if (stopped.get()) {
+                    continue;
+                }
+                if (chunk.isTruncated(maxMatches)) {
+                    if (chunk.days() > 1) {
+                        LOGGER.debug("Split {}-{} returning {} matches", chunk.from, chunk.to, chunk.matches);
+                        for (Chunk c : split(chunk, 2)) {
+                            service.submit(() -> query(params, callingNode, calledNode, level, qrLevel, c, handler,
+                                delivered, stopped, total, keys));
+                            outstanding++;
+                        }
+                    } else {
+                        LOGGER.warn("More than {} matches on {}, the results are incomplete", maxMatches, chunk.from);
+                        incomplete.add(chunk);
+                    }
+                } else if (chunk.status != Status.Success && chunk.status != Status.Cancel) {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped.set(true);
+            return new DicomState(Status.UnableToProcess, "DICOM Find interrupted", null);
+        } catch (ExecutionException e) {
+            stopped.set(true);
+            LOGGER.error("findscu by date range", e.getCause());
+            return new DicomState(Status.UnableToProcess,
+                "DICOM Find failed: " + e.getCause().getMessage(), null);
+        } finally {
+            executor.shutdown();
+        }
+
+        String msg = String.format("%d matches from %d queries between %s and %s.", total.get(), queries, from, to);
+        if (failed > 0) {
+            return new DicomState(Status.UnableToProcess, msg + " " + failed + " queries have failed.", null);
+        }
+        if (!incomplete.isEmpty()) {
+            return new DicomState(Status.OutOfResources,
+                msg + " " + incomplete.size() + " days exceed the limit of the archive.", null);
+        }
+        return new DicomState(Status.Success, msg, null);
+    }
+
+    private static Chunk query(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        QueryRetrieveLevel level, QueryRetrieveLevel qrLevel, Chunk chunk, ResultHandler handler, Set<String> delivered,
+        AtomicBoolean stopped, AtomicInteger total, DicomParam... keys) {
+        List<DicomParam> queryKeys = new ArrayList<>(keys.length + 1);
+        for (DicomParam p : keys) {
+            if (p.getTag() != Tag.StudyDate || p.getParentSeqTags() != null) {
+                queryKeys.add(p);
+            }
+        }
+        queryKeys.add(new DicomParam(Tag.StudyDate, format(chunk.from) + "-" + format(chunk.to)));
+
+        DicomState state = CFind.process(params, callingNode, calledNode, 0, level, match -> {
+            if (stopped.get()) {
+                return false;
+            }
+            chunk.matches++;
+            String key = FederatedCFind.getKey(match, qrLevel);
+            synchronized (delivered) {
+                if (key != null && !delivered.add(key)) {
+                    return true;
+                }
+                total.incrementAndGet();
+                if (!handler.onResult(match)) {
+                    stopped.set(true);
+                    return false;
+                }
+            }
+            return true;
+        }, queryKeys.toArray(new DicomParam[0]));
+        chunk.status = state.getStatus();
+        return chunk;
+    }
+
+    /**
+     * Split a date range in consecutive ranges of the same length (+/- one day), at most one range by day.
+     */
+    static List<Chunk> split(Chunk chunk, int parts) {
+        long days = chunk.days();
+        int n = (int) Math.min(days, parts);
+        List<Chunk> list = new ArrayList<>(n);
+        LocalDate start = chunk.from;
+        for (int i = 0; i < n; i++) {
+            long length = days / n + (i < days % n ? 1 : 0);
+            LocalDate end = start.plusDays(length - 1);
+            list.add(new Chunk(start, end));
+            start = end.plusDays(1);
+        }
+        return list;
+    }
+
+    private static String format(LocalDate date) {
+        return date.format(DateTimeFormatter.BASIC_ISO_DATE);
+    }
+}
@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.dcm4che3.tool.findscu.FindSCU;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * C-FIND sent in parallel to several nodes. The matches are merged and deduplicated by the UID of the level (Patient
+ * ID and issuer at the PATIENT level), each match keeps the list of the nodes where it has been found. The association
+ * of a node which does not answer within the timeout is aborted and its matches received so far are kept.
+ */
+public class FederatedCFind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FederatedCFind.class);
+
+    public static class Match {
+        private final Attributes attributes;
+        private final List<DicomNode> sources = new ArrayList<>(2);
+
+        Match(Attributes attributes) {
+            this.attributes = attributes;
+        }
+
+        /**
+         * @return the attributes of the first node returning this match
+         */
+        public Attributes getAttributes() {
+            return attributes;
+        }
+
+        /**
+         * @return the nodes returning this match, in order of arrival
+         */
+        public synchronized List<DicomNode> getSources() {
+            return new ArrayList<>(sources);
+        }
+
+        synchronized void addSource(DicomNode node) {
+            sources.add(node);
+        }
+    }
+
+    public static class Result {
+        private final List<Match> matches;
+        private final Map<DicomNode, DicomState> states;
+        private final List<DicomNode> timedOutNodes;
+
+        Result(List<Match> matches, Map<DicomNode, DicomState> states, List<DicomNode> timedOutNodes) {
+            this.matches = Collections.unmodifiableList(matches);
+            this.states = Collections.unmodifiableMap(states);
+            this.timedOutNodes = Collections.unmodifiableList(timedOutNodes);
+        }
+
+        public List<Match> getMatches() {
+            return matches;
+        }
+
+        /**
+         * @return the final state of each node (status and message, without matches)
+         */
+        public Map<DicomNode, DicomState> getStates() {
+            return states;
+        }
+
+        public List<DicomNode> getTimedOutNodes() {
+            return timedOutNodes;
+        }
+
+        /**
+         * @return true when a node has timed out or has failed
+         */
+        public boolean isPartial() {
+            return !timedOutNodes.isEmpty() || states.values().stream().anyMatch(s -> s.getStatus() != Status.Success);
+        }
+    }
+
+    private FederatedCFind() {
+    }
+
+    /**
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNodes
+     *            the called DICOM nodes
+     * @param level
+     *            specifies retrieve level. Use by default STUDY for PatientRoot, StudyRoot, PatientStudyOnly model.
+     * @param timeout
+     *            the maximum time for each node
+     * @param unit
+     *            the unit of the timeout
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return the merged matches and the state of each node
+     */
+    public static Result process(AdvancedParams params, DicomNode callingNode, List<DicomNode> calledNodes,
+        QueryRetrieveLevel level, long timeout, TimeUnit unit, DicomParam... keys) {
+        if (callingNode == null || calledNodes == null || calledNodes.isEmpty()) {
+            throw new IllegalArgumentException("callingNode or calledNodes cannot be null or empty!");
+        }
+        QueryRetrieveLevel qrLevel = level == null ? QueryRetrieveLevel.STUDY : level;
+        Map<String, Match> merged = new LinkedHashMap<>();
+        List<Match> withoutKey = new ArrayList<>();
+        Map<DicomNode, AtomicBoolean> canceled = new LinkedHashMap<>();
+        Map<DicomNode, Future<DicomState>> futures = new LinkedHashMap<>();
+        Map<DicomNode, FindSCU> findSCUs = new ConcurrentHashMap<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(calledNodes.size(), r -> {
+            Thread t = new Thread(r, "federated-cfind");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (DicomNode node : calledNodes) {
+                AtomicBoolean cancel = new AtomicBoolean();
+                canceled.put(node, cancel);
+                futures.put(node, executor.submit(() -> CFind.process(params, callingNode, node, 0, level, match -> {
+                    if (cancel.get()) {
+                        return false;
+                    }
+                    String key = getKey(match, qrLevel);
+                    synchronized (merged) {
+                        Match m = key == null ? null : merged.get(key);
+                        if (m == null) {
+                            m = new Match(match);
+                            if (key == null) {
+                                withoutKey.add(m);
+                            } else {
+                                merged.put(key, m);
+                            }
+                        }
+                        m.addSource(node);
+                    }
+                    return true;
+                }, findSCU -> {
+                    findSCUs.put(node, findSCU);
+                    // The node may have timed out before its FindSCU was created
+                    if (cancel.get()) {
+                        findSCU.abort();
+                    }
+                }, keys)));
+            }
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            Map<DicomNode, DicomState> states = new LinkedHashMap<>();
+            List<DicomNode> timedOut = new ArrayList<>();
+            for (Map.Entry<DicomNode, Future<DicomState>> entry : futures.entrySet()) {
+                DicomNode node = entry.getKey();
+                try {
+                    states.put(node, entry.getValue().get(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS));
+                } catch (TimeoutException e) {
+                    // Release the association now, the matches received before are kept
+                    canceled.get(node).set(true);
+                    abort(findSCUs.get(node));
+                    timedOut.add(node);
+                    LOGGER.warn("C-FIND to {} has timed out, partial results", node);
+                } catch (ExecutionException e) {
+                    LOGGER.error("federated findscu to {}", node, e.getCause());
+                    states.put(node, new DicomState(Status.UnableToProcess, String.valueOf(e.getCause()), null));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    canceled.values().forEach(c -> c.set(true));
+                    findSCUs.values().forEach(FederatedCFind::abort);
+                    break;
+                }
+            }
+
+            List<Match> matches;
+            synchronized (merged) {
+                // Ignore the matches arriving after the timeout
+                canceled.values().forEach(c -> c.set(true));
+                matches = new ArrayList<>(merged.values());
+                matches.addAll(withoutKey);
+            }
+            return new Result(matches, states, timedOut);
+        } finally {
+            // The threads of the timed out nodes end with their aborted association
+            executor.shutdown();
+        }
+    }
+
+    private static void abort(FindSCU findSCU) {
+        // Null when the FindSCU is not created yet, it is then aborted by the consumer
+        if (findSCU != null) {
+            findSCU.abort();
+        }
+    }
+
+    static String getKey(Attributes match, QueryRetrieveLevel level) {
+        switch (level) {
+            case PATIENT:
+                String pid = match.getString(Tag.PatientID);
+                return pid == null ? null : pid + "^^^" + match.getString(Tag.IssuerOfPatientID, "");
+            case SERIES:
+                return match.getString(Tag.SeriesInstanceUID);
+            case IMAGE:
+                return match.getString(Tag.SOPInstanceUID);
+            default:
+                return match.getString(Tag.StudyInstanceUID);
+        }
+    }
+}
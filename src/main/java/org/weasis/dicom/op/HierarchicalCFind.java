@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.mf.AbstractQueryResult;
+import org.weasis.dicom.mf.Patient;
+import org.weasis.dicom.mf.Series;
+import org.weasis.dicom.mf.SopInstance;
+import org.weasis.dicom.mf.Study;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * Builds the Patient/Study/Series/SopInstance tree of a query result with STUDY, SERIES and IMAGE level C-FIND. The
+ * levels are pipelined: the SERIES query of a study starts as soon as the study is received, and the IMAGE query of a
+ * series as soon as the series is received. The number of concurrent associations is bounded.
+ */
+public class HierarchicalCFind {
+    private static final Logger LOGGER = LoggerFactory.getLogger(HierarchicalCFind.class);
+
+    private static final DicomParam[] STUDY_RETURN_KEYS = { CFind.PatientID, CFind.IssuerOfPatientID,
+        CFind.PatientName, CFind.PatientBirthDate, CFind.PatientSex, CFind.StudyInstanceUID, CFind.AccessionNumber,
+        CFind.StudyID, CFind.ReferringPhysicianName, CFind.StudyDescription, CFind.StudyDate, CFind.StudyTime };
+    private static final DicomParam[] SERIES_RETURN_KEYS =
+        { CFind.SeriesInstanceUID, CFind.Modality, CFind.SeriesNumber, CFind.SeriesDescription };
+    private static final DicomParam[] IMAGE_RETURN_KEYS = { CFind.SOPInstanceUID, CFind.InstanceNumber };
+
+    private final AdvancedParams params;
+    private final DicomNode callingNode;
+    private final DicomNode calledNode;
+    private final AbstractQueryResult result;
+    private final ExecutorService executor;
+    private final Phaser pending = new Phaser(1);
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private HierarchicalCFind(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        AbstractQueryResult result, int maxParallel) {
+        this.params = params;
+        this.callingNode = callingNode;
+        this.calledNode = calledNode;
+        this.result = result;
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxParallel), r -> {
+            Thread t = new Thread(r, "hierarchical-cfind");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Query the studies matching the keys, then their series and their instances, and add them to the result. The
+     * items of the result are modified while synchronized on the result.
+     *
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS). The information model must
+     *            support the IMAGE level (StudyRoot by default).
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param result
+     *            the result receiving the patients, studies, series and instances
+     * @param maxParallel
+     *            the maximum number of concurrent associations for the SERIES and IMAGE levels
+     * @param studyKeys
+     *            the matching keys of the STUDY level (e.g. PatientID, StudyDate)
+     * @return the state of the whole query (status and message, without matches)
+     */
+    public static DicomState process(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        AbstractQueryResult result, int maxParallel, DicomParam... studyKeys) {
+        if (callingNode == null || calledNode == null || result == null) {
+            throw new IllegalArgumentException("callingNode, calledNode or result cannot be null!");
+        }
+        HierarchicalCFind query = new HierarchicalCFind(params, callingNode, calledNode, result, maxParallel);
+        try {
+            return query.run(studyKeys);
+        } finally {
+            query.executor.shutdown();
+        }
+    }
+
+    private DicomState run(DicomParam... studyKeys) {
+        DicomState state = query(QueryRetrieveLevel.STUDY, this::onStudy, merge(studyKeys, STUDY_RETURN_KEYS));
+        // Wait for the SERIES and IMAGE queries
+        pending.arriveAndAwaitAdvance();
+
+        String msg = String.format("Hierarchical C-Find with %d queries.", queries.get());
+        if (state.getStatus() != Status.Success) {
+            return new DicomState(state.getStatus(), msg + " STUDY level: " + state.getMessage(), null);
+        }
+        if (failures.get() > 0) {
+            return new DicomState(Status.UnableToProcess, msg + " " + failures.get() + " queries have failed.",
+                null);
+        }
+        return new DicomState(Status.Success, msg, null);
+    }
+
+    private DicomState query(QueryRetrieveLevel level, Consumer<Attributes> onMatch, DicomParam... keys) {
+        queries.incrementAndGet();
+        DicomState state = CFind.process(params, callingNode, calledNode, 0, level, match -> {
+            onMatch.accept(match);
+            return true;
+        }, keys);
+        if (level != QueryRetrieveLevel.STUDY && state.getStatus() != Status.Success) {
+            failures.incrementAndGet();
+            LOGGER.error("{} level query: {}", level, state.getMessage());
+        }
+        return state;
+    }
+
+    private void submit(Runnable task) {
+        pending.register();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                    LOGGER.error("Hierarchical C-Find", e);
+                } finally {
+                    pending.arriveAndDeregister();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.arriveAndDeregister();
+            throw e;
+        }
+    }
+
+    private void onStudy(Attributes attrs) {
+        String studyUID = attrs.getString(Tag.StudyInstanceUID);
+        if (studyUID == null) {
+            return;
+        }
+        String patientID = attrs.getString(Tag.PatientID, "");
+        String issuer = attrs.getString(Tag.IssuerOfPatientID);
+        Study study;
+        synchronized (result) {
+            Patient patient = result.getPatient(patientID, issuer);
+            if (patient == null) {
+                patient = new Patient(patientID, issuer);
+                patient.setPatientName(attrs.getString(Tag.PatientName));
+                patient.setPatientBirthDate(attrs.getString(Tag.PatientBirthDate));
+                patient.setPatientSex(attrs.getString(Tag.PatientSex));
+                result.addPatient(patient);
+            }
+            study = patient.getStudy(studyUID);
+            if (study == null) {
+                study = new Study(studyUID);
+                study.setStudyDescription(attrs.getString(Tag.StudyDescription));
+                study.setStudyDate(attrs.getString(Tag.StudyDate));
+                study.setStudyTime(attrs.getString(Tag.StudyTime));
+                study.setAccessionNumber(attrs.getString(Tag.AccessionNumber));
+                study.setStudyID(attrs.getString(Tag.StudyID));
+                study.setReferringPhysicianName(attrs.getString(Tag.ReferringPhysicianName));
+                patient.addStudy(study);
+            }
+        }
+        Study s = study;
+        submit(() -> query(QueryRetrieveLevel.SERIES, m -> onSeries(s, m),
+            merge(new DicomParam[] { new DicomParam(Tag.StudyInstanceUID, studyUID) }, SERIES_RETURN_KEYS)));
+    }
+
+    private void onSeries(Study study, Attributes attrs) {
+        String seriesUID = attrs.getString(Tag.SeriesInstanceUID);
+        if (seriesUID == null) {
+            return;
+        }
+        Series series;
+        synchronized (result) {
+            series = study.getSeries(seriesUID);
+            if (series == null) {
+                series = new Series(seriesUID);
+                series.setModality(attrs.getString(Tag.Modality));
+                series.setSeriesNumber(attrs.getString(Tag.SeriesNumber));
+                series.setSeriesDescription(attrs.getString(Tag.SeriesDescription));
+                study.addSeries(series);
+            }
+        }
+        Series s = series;
+        DicomParam[] keys = { new DicomParam(Tag.StudyInstanceUID, study.getStudyInstanceUID()),
+            new DicomParam(Tag.SeriesInstanceUID, seriesUID) };
+        submit(() -> query(QueryRetrieveLevel.IMAGE, m -> onInstance(s, m), merge(keys, IMAGE_RETURN_KEYS)));
+    }
+
+    private void onInstance(Series series, Attributes attrs) {
+        String sopUID = attrs.getString(Tag.SOPInstanceUID);
+        if (sopUID == null) {
+            return;
+        }
+        int number = attrs.getInt(Tag.InstanceNumber, -1);
+        synchronized (result) {
+            series.addSopInstance(new SopInstance(sopUID, number < 0 ? null : number));
+        }
+    }
+
+    private static DicomParam[] merge(DicomParam[] matchingKeys, DicomParam[] returnKeys) {
+        List<DicomParam> list = new ArrayList<>(matchingKeys.length + returnKeys.length);
+        Collections.addAll(list, matchingKeys);
+        for (DicomParam r : returnKeys) {
+            if (list.stream().noneMatch(p -> p.getTag() == r.getTag() && p.getParentSeqTags() == null)) {
+                list.add(r);
+            }
+        }
+        return list.toArray(new DicomParam[0]);
+    }
+}
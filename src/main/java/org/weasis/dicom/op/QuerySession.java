@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Association;
+import org.dcm4che3.net.Connection;
+import org.dcm4che3.net.DimseRSPHandler;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.dcm4che3.tool.findscu.FindSCU;
+import org.dcm4che3.tool.findscu.FindSCU.ResultHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DeviceOpService;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+
+/**
+ * One association used for many C-FIND. The queries are sent without waiting for the previous ones, up to the number
+ * of outstanding operations negotiated with the SCP (one when the SCP does not support asynchronous operations).
+ * <p>
+ * The information model is the one of AdvancedParams (Study Root by default). For worklist queries, set
+ * InformationModel.MWL and query without level; the keys of the Scheduled Procedure Step Sequence are given with
+ * their parent sequence as with ModalityWorklist.process().
+ * <p>
+ * The session must be closed for releasing the association.
+ */
+public class QuerySession implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(QuerySession.class);
+
+    private final FindSCU findSCU;
+    private final DeviceOpService service;
+    private final Semaphore window;
+    private final int maxOpsInvoked;
+
+    private QuerySession(FindSCU findSCU, DeviceOpService service) {
+        this.findSCU = findSCU;
+        this.service = service;
+        int ops = findSCU.getAssociation().getMaxOpsInvoked();
+        this.maxOpsInvoked = ops;
+        this.window = new Semaphore(ops <= 0 ? Integer.MAX_VALUE : ops);
+    }
+
+    /**
+     * Open the association
+     *
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration
+     * @param maxOpsInvoked
+     *            the proposed number of outstanding C-FIND, 0 for unlimited
+     * @return the session
+     * @throws Exception
+     *             when the association cannot be opened
+     */
+    public static QuerySession open(AdvancedParams params, DicomNode callingNode, DicomNode calledNode,
+        int maxOpsInvoked) throws Exception {
+        if (callingNode == null || calledNode == null) {
+            throw new IllegalArgumentException("callingNode or calledNode cannot be null!");
+        }
+        AdvancedParams options = params == null ? new AdvancedParams() : params;
+        FindSCU findSCU = new FindSCU();
+        DeviceOpService service = new DeviceOpService(findSCU.getDevice());
+        try {
+            Connection remote = findSCU.getRemoteConnection();
+            Connection conn = findSCU.getConnection();
+            options.configureConnect(findSCU.getAAssociateRQ(), remote, calledNode);
+            options.configureBind(findSCU.getApplicationEntity(), conn, callingNode);
+            options.configure(conn);
+            options.configureTLS(conn, remote);
+
+            findSCU.setInformationModel(CFind.getInformationModel(options), options.getTsuidOrder(),
+                options.getQueryOptions());
+            findSCU.setPriority(options.getPriority());
+            findSCU.setMaxOpsInvoked(maxOpsInvoked);
+
+            service.start();
+            findSCU.open();
+            return new QuerySession(findSCU, service);
+        } catch (Exception e) {
+            FileUtil.safeClose(findSCU);
+            service.stop();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of outstanding C-FIND accepted by the SCP, 0 for unlimited
+     */
+    public int getMaxOpsInvoked() {
+        return maxOpsInvoked;
+    }
+
+    public boolean isOpen() {
+        Association as = findSCU.getAssociation();
+        return as != null && as.isReadyForDataTransfer();
+    }
+
+    /**
+     * @param level
+     *            the query level, null for none (e.g. worklist)
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return the DicomState with the matches, completed with the final response
+     * @throws IOException
+     *             when the request cannot be sent
+     * @throws InterruptedException
+     *             when interrupted while waiting for a free outstanding operation
+     */
+    public CompletableFuture<DicomState> query(QueryRetrieveLevel level, DicomParam... keys)
+        throws IOException, InterruptedException {
+        return query(level, null, keys);
+    }
+
+    /**
+     * Send a C-FIND. The call blocks only when the outstanding operations are all in use.
+     *
+     * @param level
+     *            the query level, null for none (e.g. worklist)
+     * @param handler
+     *            the handler receiving the matches (from the thread of the association), returns false for canceling
+     *            the query. Null for keeping the matches in the DicomState.
+     * @param keys
+     *            the matching and returning keys. DicomParam with no value is a returning key.
+     * @return the DicomState completed with the final response
+     * @throws IOException
+     *             when the request cannot be sent
+     * @throws InterruptedException
+     *             when interrupted while waiting for a free outstanding operation
+     */
+    public CompletableFuture<DicomState> query(QueryRetrieveLevel level, ResultHandler handler, DicomParam... keys)
+        throws IOException, InterruptedException {
+        Attributes attrs = new Attributes();
+        if (level != null) {
+            attrs.setString(Tag.QueryRetrieveLevel, VR.CS, level.name());
+        }
+        CFind.addKeys(attrs, keys);
+
+        window.acquire();
+        Association as = findSCU.getAssociation();
+        DicomState state = new DicomState();
+        CompletableFuture<DicomState> future = new CompletableFuture<>();
+        DimseRSPHandler rspHandler = new DimseRSPHandler(as.nextMessageID()) {
+            boolean canceled;
+
+            @Override
+            public void onDimseRSP(Association as, Attributes cmd, Attributes data) {
+                super.onDimseRSP(as, cmd, data);
+                int status = cmd.getInt(Tag.Status, -1);
+                if (Status.isPending(status)) {
+                    if (handler == null) {
+                        state.addDicomRSP(data);
+                    } else if (!handler.onResult(data) && !canceled) {
+                        canceled = true;
+                        try {
+                            cancel(as);
+                        } catch (IOException e) {
+                            LOGGER.error("Cancel C-FIND", e);
+                        }
+                    }
+                } else {
+                    state.setStatus(status);
+                    state.setMessage(cmd.getString(Tag.ErrorComment));
+                    complete();
+                }
+            }
+
+            @Override
+            public void onClose(Association as) {
+                super.onClose(as);
+                if (!future.isDone()) {
+                    state.setStatus(Status.UnableToProcess);
+                    state.setMessage("Association closed before the end of the C-FIND");
+                    complete();
+                }
+            }
+
+            private void complete() {
+                if (future.complete(state)) {
+                    window.release();
+                }
+            }
+        };
+        try {
+            findSCU.query(attrs, rspHandler);
+        } catch (IOException | RuntimeException e) {
+            window.release();
+            throw e;
+        }
+        return future;
+    }
+
+    /**
+     * Wait for the outstanding C-FIND and release the association
+     */
+    @Override
+    public void close() {
+        FileUtil.safeClose(findSCU);
+        service.stop();
+    }
+}
@@ -11,6 +11,10 @@
 package org.weasis.dicom.param;
 
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.weasis.dicom.param.DeviceListenerService.ExecutorFactory;
 
 public abstract class AbstractListenerParams {
 
@@ -18,6 +22,9 @@ public abstract class AbstractListenerParams {
     protected final boolean bindCallingAet;
     protected final URL transferCapabilityFile;
     protected final String[] acceptedCallingAETitles;
+    protected final Map<String, Integer> maxAssociationsByCallingAet = new HashMap<>();
+    protected int maxOpenAssociations;
+    protected ExecutorFactory executorFactory;
 
     /**
      * @param bindCallingAet
@@ -79,4 +86,48 @@ public abstract class AbstractListenerParams {
         return params;
     }
 
-}
\ No newline at end of file
+    public int getMaxOpenAssociations() {
+        return maxOpenAssociations;
+    }
+
+    /**
+     * @param maxOpenAssociations
+     *            the maximum number of concurrent associations, 0 for no limit. Over the limit, the associations are
+     *            rejected with A-ASSOCIATE-RJ (rejected transient, local limit exceeded).
+     */
+    public void setMaxOpenAssociations(int maxOpenAssociations) {
+        this.maxOpenAssociations = Math.max(0, maxOpenAssociations);
+    }
+
+    public Map<String, Integer> getMaxAssociationsByCallingAet() {
+        return maxAssociationsByCallingAet;
+    }
+
+    /**
+     * @param callingAet
+     *            the calling AETitle
+     * @param limit
+     *            the maximum number of concurrent associations initiated by this AETitle, 0 for removing the limit
+     */
+    public void setMaxAssociationsByCallingAet(String callingAet, int limit) {
+        if (limit > 0) {
+            maxAssociationsByCallingAet.put(callingAet, limit);
+        } else {
+            maxAssociationsByCallingAet.remove(callingAet);
+        }
+    }
+
+    public ExecutorFactory getExecutorFactory() {
+        return executorFactory;
+    }
+
+    /**
+     * @param executorFactory
+     *            the executor of the associations (see DeviceListenerService). Null will use an unbounded pool of
+     *            threads.
+     */
+    public void setExecutorFactory(ExecutorFactory executorFactory) {
+        this.executorFactory = executorFactory;
+    }
+
+}
@@ -47,6 +47,8 @@ public class AdvancedParams {
 
     private int priority = Priority.NORMAL;
 
+    private boolean returnKeysOnly;
+
     private ConnectOptions connectOptions;
     private TlsOptions tlsOptions;
 
@@ -100,6 +102,19 @@ public class AdvancedParams {
         this.priority = priority;
     }
 
+    public boolean isReturnKeysOnly() {
+        return returnKeysOnly;
+    }
+
+    /**
+     * @param returnKeysOnly
+     *            true for keeping in the C-FIND matches only the attributes of the query keys (reduces the memory of
+     *            large results). The default value is false.
+     */
+    public void setReturnKeysOnly(boolean returnKeysOnly) {
+        this.returnKeysOnly = returnKeysOnly;
+    }
+
     public UserIdentityRQ getIdentity() {
         return identity;
     }
@@ -12,10 +12,13 @@ package org.weasis.dicom.param;
 
 import java.net.URL;
 
+import org.weasis.dicom.util.TranscodedDataCache;
+
 public class CstoreParams {
     private final DefaultAttributeEditor attributeEditor;
     private final boolean extendNegociation;
     private final URL extendSopClassesURL;
+    private final TranscodedDataCache transcodedDataCache;
 
     /**
      * @param attributeEditor
@@ -26,9 +29,25 @@ public class CstoreParams {
      *            configuration file of the SOP classes negotiation extension
      */
     public CstoreParams(DefaultAttributeEditor attributeEditor, boolean extendNegociation, URL extendSopClassesURL) {
+        this(attributeEditor, extendNegociation, extendSopClassesURL, null);
+    }
+
+    /**
+     * @param attributeEditor
+     *            a editor to modify DICOM attributes
+     * @param extendNegociation
+     *            extends SOP classes negotiation
+     * @param extendSopClassesURL
+     *            configuration file of the SOP classes negotiation extension
+     * @param transcodedDataCache
+     *            a cache of the decompressed instances shared between several destinations
+     */
+    public CstoreParams(DefaultAttributeEditor attributeEditor, boolean extendNegociation, URL extendSopClassesURL,
+        TranscodedDataCache transcodedDataCache) {
         this.attributeEditor = attributeEditor;
         this.extendNegociation = extendNegociation;
         this.extendSopClassesURL = extendSopClassesURL;
+        this.transcodedDataCache = transcodedDataCache;
     }
 
     public DefaultAttributeEditor getAttributeEditor() {
@@ -42,4 +61,8 @@ public class CstoreParams {
     public URL getExtendSopClassesURL() {
         return extendSopClassesURL;
     }
+
+    public TranscodedDataCache getTranscodedDataCache() {
+        return transcodedDataCache;
+    }
 }
@@ -12,43 +12,202 @@ package org.weasis.dicom.param;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.dcm4che3.net.Device;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class DeviceListenerService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeviceListenerService.class);
+
+    @FunctionalInterface
+    public interface ExecutorFactory {
+        ExecutorService createExecutor();
+
+        /**
+         * @return the maximum number of threads of the executor, 0 when unbounded
+         */
+        default int getMaxThreads() {
+            return 0;
+        }
+    }
 
     protected final Device device;
     protected ExecutorService executor;
     protected ScheduledExecutorService scheduledExecutor;
+    private ExecutorFactory executorFactory = cachedThreadPool();
+    private boolean sharedExecutors;
+    private int sharedAssociationLimit;
+    private int maxOpenAssociations;
+    private String[] maxAssociationsByCallingAet = {};
 
     public DeviceListenerService(Device device) {
         this.device = Objects.requireNonNull(device);
     }
 
+    /**
+     * Unbounded pool of platform threads (default)
+     */
+    public static ExecutorFactory cachedThreadPool() {
+        return Executors::newCachedThreadPool;
+    }
+
+    /**
+     * Bounded pool of platform threads. Each association and each listening connection holds a thread while it is
+     * open, so the limit of open associations is lowered to keep a free thread: the associations over the limit are
+     * rejected with A-ASSOCIATE-RJ instead of waiting in the queue.
+     *
+     * @param maxThreads
+     *            the maximum number of threads
+     * @param queueSize
+     *            the maximum number of tasks waiting for a thread
+     */
+    public static ExecutorFactory boundedThreadPool(int maxThreads, int queueSize) {
+        return new ExecutorFactory() {
+            @Override
+            public ExecutorService createExecutor() {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueSize));
+                pool.allowCoreThreadTimeOut(true);
+                return pool;
+            }
+
+            @Override
+            public int getMaxThreads() {
+                return maxThreads;
+            }
+        };
+    }
+
+    /**
+     * One virtual thread per task when running on Java 21 or higher, otherwise an unbounded pool of platform threads.
+     */
+    public static ExecutorFactory virtualThreads() {
+        return () -> {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads are not available with Java {}, use platform threads",
+                    System.getProperty("java.version"));
+                return Executors.newCachedThreadPool();
+            }
+        };
+    }
+
     public Device getDevice() {
         return device;
     }
 
+    public void setExecutorFactory(ExecutorFactory executorFactory) {
+        this.executorFactory = Objects.requireNonNull(executorFactory);
+    }
+
+    /**
+     * Limit the number of concurrent associations. When a limit is reached, the association is rejected with
+     * A-ASSOCIATE-RJ (rejected transient, local limit exceeded). The previous limits are replaced.
+     *
+     * @param maxOpenAssociations
+     *            the maximum number of open associations, 0 for no limit
+     * @param maxAssociationsByCallingAet
+     *            the maximum number of open associations by calling AETitle (0 for no limit), can be null
+     */
+    public synchronized void setAssociationLimits(int maxOpenAssociations,
+        Map<String, Integer> maxAssociationsByCallingAet) {
+        this.maxOpenAssociations = Math.max(0, maxOpenAssociations);
+        List<String> limits = new ArrayList<>();
+        if (maxAssociationsByCallingAet != null) {
+            for (Entry<String, Integer> entry : maxAssociationsByCallingAet.entrySet()) {
+                if (entry.getValue() != null && entry.getValue() > 0) {
+                    limits.add(entry.getKey() + '=' + entry.getValue());
+                }
+            }
+        }
+        this.maxAssociationsByCallingAet = limits.toArray(new String[0]);
+        applyAssociationLimits();
+    }
+
+    /**
+     * Limit the number of concurrent associations when the executors are shared with other devices. With a bounded
+     * pool, the owner of the executors gives a share of the threads to each device (see DicomListenerGroup).
+     *
+     * @param sharedAssociationLimit
+     *            the maximum number of open associations in the shared executors, 0 for no limit
+     */
+    public synchronized void setSharedAssociationLimit(int sharedAssociationLimit) {
+        this.sharedAssociationLimit = Math.max(0, sharedAssociationLimit);
+        applyAssociationLimits();
+    }
+
+    private void applyAssociationLimits() {
+        int limit = maxOpenAssociations;
+        int threadLimit;
+        if (sharedExecutors) {
+            threadLimit = sharedAssociationLimit;
+        } else {
+            int maxThreads = executorFactory.getMaxThreads();
+            // Keep a thread for rejecting the associations over the limit
+            threadLimit = maxThreads > 0 ? Math.max(1, maxThreads - device.listConnections().size() - 1) : 0;
+        }
+        if (threadLimit > 0) {
+            limit = limit == 0 ? threadLimit : Math.min(limit, threadLimit);
+        }
+        device.setLimitOpenAssociations(limit);
+        // Replace all the limits by calling AETitle
+        device.setLimitAssociationsInitiatedBy(maxAssociationsByCallingAet);
+    }
+
     public boolean isRunning() {
         return executor != null;
     }
 
     public synchronized void start() throws IOException, GeneralSecurityException {
         if (!isRunning()) {
-            executor = Executors.newCachedThreadPool();
-            scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
-            try {
-                device.setExecutor(executor);
-                device.setScheduledExecutor(scheduledExecutor);
-                device.bindConnections();
-            } catch (IOException | GeneralSecurityException e) {
-                stop();
-                throw e;
-            }
+            start(executorFactory.createExecutor(), Executors.newSingleThreadScheduledExecutor(), false);
+        }
+    }
+
+    /**
+     * Start with executors shared with other devices. The executors are not shut down when stopping this service. With
+     * a bounded pool, the share of the threads must be set before by setSharedAssociationLimit().
+     *
+     * @param executor
+     *            the executor of the associations
+     * @param scheduledExecutor
+     *            the executor of the timeouts
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public synchronized void start(ExecutorService executor, ScheduledExecutorService scheduledExecutor)
+        throws IOException, GeneralSecurityException {
+        if (!isRunning()) {
+            start(Objects.requireNonNull(executor), Objects.requireNonNull(scheduledExecutor), true);
+        }
+    }
+
+    private void start(ExecutorService executor, ScheduledExecutorService scheduledExecutor, boolean shared)
+        throws IOException, GeneralSecurityException {
+        this.executor = executor;
+        this.scheduledExecutor = scheduledExecutor;
+        this.sharedExecutors = shared;
+        try {
+            applyAssociationLimits();
+            device.setExecutor(executor);
+            device.setScheduledExecutor(scheduledExecutor);
+            device.bindConnections();
+        } catch (IOException | GeneralSecurityException e) {
+            stop();
+            throw e;
         }
     }
 
@@ -56,11 +215,13 @@ public class DeviceListenerService {
         if (device != null) {
             device.unbindConnections();
         }
-        if (scheduledExecutor != null) {
-            scheduledExecutor.shutdown();
-        }
-        if (executor != null) {
-            executor.shutdown();
+        if (!sharedExecutors) {
+            if (scheduledExecutor != null) {
+                scheduledExecutor.shutdown();
+            }
+            if (executor != null) {
+                executor.shutdown();
+            }
         }
         executor = null;
         scheduledExecutor = null;
@@ -23,9 +23,22 @@ public class DeviceOpService {
     protected final Device device;
     protected ExecutorService executor;
     protected ScheduledExecutorService scheduledExecutor;
+    private final boolean concurrentAssociations;
 
     public DeviceOpService(Device device) {
+        this(device, false);
+    }
+
+    /**
+     * @param device
+     *            the DICOM device
+     * @param concurrentAssociations
+     *            true when the device can have several associations at the same time (e.g. a new association opened
+     *            before releasing the previous one)
+     */
+    public DeviceOpService(Device device, boolean concurrentAssociations) {
         this.device = Objects.requireNonNull(device);
+        this.concurrentAssociations = concurrentAssociations;
     }
 
     public Device getDevice() {
@@ -38,7 +51,8 @@ public class DeviceOpService {
 
     public synchronized void start() {
         if (!isRunning()) {
-            executor = Executors.newSingleThreadExecutor();
+            executor =
+                concurrentAssociations ? Executors.newCachedThreadPool() : Executors.newSingleThreadExecutor();
             scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
             device.setExecutor(executor);
             device.setScheduledExecutor(scheduledExecutor);
@@ -11,6 +11,7 @@
 package org.weasis.dicom.param;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.dcm4che3.data.Attributes;
@@ -35,7 +36,7 @@ public class DicomState {
         this.status = status;
         this.message = message;
         this.progress = progress;
-        this.dicomRSP = new ArrayList<>();
+        this.dicomRSP = Collections.synchronizedList(new ArrayList<>());
     }
 
     /**
@@ -15,6 +15,8 @@ import java.io.IOException;
 import java.net.URL;
 import java.security.GeneralSecurityException;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.TransferCapability;
@@ -66,6 +68,40 @@ public class DicomListener {
      * @throws GeneralSecurityException
      */
     public synchronized void start(DicomNode scpNode, ListenerParams params) throws Exception {
+        configure(scpNode, params);
+        deviceService.setExecutorFactory(params.getExecutorFactory() == null
+            ? DeviceListenerService.cachedThreadPool() : params.getExecutorFactory());
+        deviceService.start();
+    }
+
+    /**
+     * Start the DICOM Listener with executors shared with other listeners (see DicomListenerGroup). The executor
+     * factory of the parameters is ignored.
+     *
+     * @param scpNode
+     *            the listener DICOM node
+     * @param params
+     *            the listener parameters
+     * @param executor
+     *            the executor of the associations
+     * @param scheduledExecutor
+     *            the executor of the timeouts
+     * @throws Exception
+     */
+    public synchronized void start(DicomNode scpNode, ListenerParams params, ExecutorService executor,
+        ScheduledExecutorService scheduledExecutor) throws Exception {
+        configure(scpNode, params);
+        deviceService.start(executor, scheduledExecutor);
+    }
+
+    /**
+     * @see DeviceListenerService#setSharedAssociationLimit(int)
+     */
+    void setSharedAssociationLimit(int limit) {
+        deviceService.setSharedAssociationLimit(limit);
+    }
+
+    private void configure(DicomNode scpNode, ListenerParams params) throws Exception {
         if (isRunning()) {
             throw new IOException("Cannot start a DICOM Listener because it is already running.");
         }
@@ -94,7 +130,7 @@ public class DicomListener {
                 .addTransferCapability(new TransferCapability(null, "*", TransferCapability.Role.SCP, "*"));
         }
 
-        deviceService.start();
+        deviceService.setAssociationLimits(params.getMaxOpenAssociations(), params.getMaxAssociationsByCallingAet());
     }
 
     public synchronized void stop() {
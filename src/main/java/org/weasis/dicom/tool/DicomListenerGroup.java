@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.dcm4che3.tool.storescp.StoreSCP;
+import org.weasis.dicom.param.DeviceListenerService;
+import org.weasis.dicom.param.DeviceListenerService.ExecutorFactory;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.ListenerParams;
+import org.weasis.dicom.util.ByteBufferPool;
+import org.weasis.dicom.util.ServiceUtil;
+import org.weasis.dicom.util.StoreMetrics;
+
+/**
+ * Hosts several DICOM Listeners (one by AETitle and port) in the same runtime. Each listener has its own storage
+ * folder, storage pattern and accepted calling AETitles (see ListenerParams), but all the listeners share the same
+ * executors, the same pool of buffers and the same metrics. With a bounded executor, the threads which are not
+ * held by the listening connections are split between the listeners for limiting their open associations.
+ */
+public class DicomListenerGroup {
+
+    private static class HostedListener {
+        final DicomListener listener;
+        final DicomNode scpNode;
+        final ListenerParams params;
+
+        HostedListener(DicomListener listener, DicomNode scpNode, ListenerParams params) {
+            this.listener = listener;
+            this.scpNode = scpNode;
+            this.params = params;
+        }
+    }
+
+    private final List<HostedListener> listeners = new ArrayList<>();
+    private final ByteBufferPool bufferPool;
+    private final StoreMetrics metrics = new StoreMetrics();
+    private ExecutorFactory executorFactory = DeviceListenerService.cachedThreadPool();
+    private ExecutorService executor;
+    private ScheduledExecutorService scheduledExecutor;
+
+    public DicomListenerGroup() {
+        this(ByteBufferPool.DEFAULT);
+    }
+
+    /**
+     * @param bufferPool
+     *            the pool of buffers shared by the listeners
+     */
+    public DicomListenerGroup(ByteBufferPool bufferPool) {
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+    }
+
+    /**
+     * @param executorFactory
+     *            the factory of the executor shared by all the associations. Must be set before starting.
+     */
+    public synchronized void setExecutorFactory(ExecutorFactory executorFactory) {
+        this.executorFactory = Objects.requireNonNull(executorFactory);
+    }
+
+    public StoreMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Add a listener, started immediately when the group is running.
+     *
+     * @param storageDir
+     *            the storage folder of the listener
+     * @param scpNode
+     *            the listener DICOM node (AETitle, hostname and port)
+     * @param params
+     *            the listener parameters (the executor factory is ignored)
+     * @return the listener
+     * @throws Exception
+     */
+    public synchronized DicomListener addListener(File storageDir, DicomNode scpNode, ListenerParams params)
+        throws Exception {
+        DicomListener listener = new DicomListener(storageDir);
+        StoreSCP storeSCP = listener.getStoreSCP();
+        storeSCP.setBufferPool(bufferPool);
+        storeSCP.setStoreMetrics(metrics);
+        HostedListener hosted =
+            new HostedListener(listener, Objects.requireNonNull(scpNode), Objects.requireNonNull(params));
+        if (isRunning()) {
+            List<DicomListener> list = new ArrayList<>(getListeners());
+            list.add(listener);
+            applyThreadLimits(list);
+            listener.start(scpNode, params, executor, scheduledExecutor);
+        }
+        listeners.add(hosted);
+        return listener;
+    }
+
+    /**
+     * Stop and remove a listener
+     */
+    public synchronized boolean removeListener(DicomListener listener) {
+        for (HostedListener hosted : listeners) {
+            if (hosted.listener == listener) {
+                listener.stop();
+                return listeners.remove(hosted);
+            }
+        }
+        return false;
+    }
+
+    public synchronized List<DicomListener> getListeners() {
+        List<DicomListener> list = new ArrayList<>(listeners.size());
+        listeners.forEach(h -> list.add(h.listener));
+        return Collections.unmodifiableList(list);
+    }
+
+    public synchronized boolean isRunning() {
+        return executor != null;
+    }
+
+    /**
+     * Start all the listeners. When a listener cannot be started, the ones already started are stopped.
+     *
+     * @throws Exception
+     */
+    public synchronized void start() throws Exception {
+        if (isRunning()) {
+            throw new IOException("Cannot start the DICOM Listeners because they are already running.");
+        }
+        applyThreadLimits(getListeners());
+        executor = executorFactory.createExecutor();
+        scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            for (HostedListener hosted : listeners) {
+                hosted.listener.start(hosted.scpNode, hosted.params, executor, scheduledExecutor);
+            }
+        } catch (Exception e) {
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Split the threads of a bounded executor between the listeners. Each listening connection holds a thread and a
+     * thread is kept for rejecting the associations over the limits, the others are shared equally by the listeners.
+     */
+    private void applyThreadLimits(List<DicomListener> list) throws IOException {
+        int maxThreads = executorFactory.getMaxThreads();
+        if (maxThreads <= 0 || list.isEmpty()) {
+            return;
+        }
+        int available = maxThreads - list.size() - 1;
+        if (available < list.size()) {
+            throw new IOException("The pool of " + maxThreads + " threads is too small for " + list.size()
+                + " DICOM Listeners, at least " + (2 * list.size() + 1) + " threads are required.");
+        }
+        for (int i = 0; i < list.size(); i++) {
+            list.get(i).setSharedAssociationLimit(available / list.size() + (i < available % list.size() ? 1 : 0));
+        }
+    }
+
+    public synchronized void stop() {
+        for (HostedListener hosted : listeners) {
+            hosted.listener.stop();
+        }
+        if (scheduledExecutor != null) {
+            ServiceUtil.shutdownService(scheduledExecutor);
+        }
+        if (executor != null) {
+            ServiceUtil.shutdownService(executor);
+        }
+        executor = null;
+        scheduledExecutor = null;
+    }
+}
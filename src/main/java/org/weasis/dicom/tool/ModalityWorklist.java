@@ -13,7 +13,6 @@ package org.weasis.dicom.tool;
 import java.text.MessageFormat;
 
 import org.dcm4che3.data.Attributes;
-import org.dcm4che3.data.Sequence;
 import org.dcm4che3.data.Tag;
 import org.dcm4che3.net.Connection;
 import org.dcm4che3.net.Status;
@@ -153,10 +152,11 @@ public class ModalityWorklist {
             findSCU.setInformationModel(getInformationModel(options), options.getTsuidOrder(),
                 options.getQueryOptions());
 
-            addKeys(findSCU, keys);
+            addKeys(findSCU.getKeys(), keys);
 
             findSCU.setCancelAfter(cancelAfter);
             findSCU.setPriority(options.getPriority());
+            findSCU.setReturnKeysOnly(options.isReturnKeysOnly());
 
             service.start();
             try {
@@ -187,25 +187,8 @@ public class ModalityWorklist {
         }
     }
 
-    private static void addKeys(FindSCU findSCU, DicomParam[] keys) {
-        for (DicomParam p : keys) {
-            int[] pSeq = p.getParentSeqTags();
-            if (pSeq == null || pSeq.length == 0) {
-                CFind.addAttributes(findSCU.getKeys(), p);
-            } else {
-                Attributes parent = findSCU.getKeys();
-                for (int value : pSeq) {
-                    Sequence lastSeq = parent.getSequence(value);
-                    if (lastSeq == null || lastSeq.isEmpty()) {
-                        lastSeq = parent.newSequence(value, 1);
-                        lastSeq.add(new Attributes());
-                    }
-                    parent = lastSeq.get(0);
-                }
-
-                CFind.addAttributes(parent, p);
-            }
-        }
+    static void addKeys(Attributes attrs, DicomParam[] keys) {
+        CFind.addKeys(attrs, keys);
     }
 
     private static InformationModel getInformationModel(AdvancedParams options) {
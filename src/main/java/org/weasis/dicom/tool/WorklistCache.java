@@ -0,0 +1,310 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.tool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.dicom.param.AdvancedParams;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+import org.weasis.dicom.util.ServiceUtil;
+
+/**
+ * Local copy of a Modality Worklist refreshed in the background with the same query keys. The local queries are
+ * answered from the last successful refresh without contacting the worklist provider. Each refresh is compared to the
+ * previous one and the added, removed and changed Scheduled Procedure Steps are notified to the listeners.
+ * <p>
+ * A Scheduled Procedure Step is identified by its Scheduled Procedure Step ID and the Study Instance UID.
+ */
+public class WorklistCache implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WorklistCache.class);
+
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * Called from the refresh thread when a refresh has modified the worklist
+         */
+        void worklistChanged(List<Change> changes);
+    }
+
+    public static class Change {
+        public enum Type {
+            ADDED, REMOVED, CHANGED
+        }
+
+        private final Type type;
+        private final String key;
+        private final Attributes previous;
+        private final Attributes current;
+
+        Change(Type type, String key, Attributes previous, Attributes current) {
+            this.type = type;
+            this.key = key;
+            this.previous = previous;
+            this.current = current;
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * @return the identifier of the Scheduled Procedure Step
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the item before the refresh, null when ADDED
+         */
+        public Attributes getPrevious() {
+            return previous;
+        }
+
+        /**
+         * @return the item after the refresh, null when REMOVED
+         */
+        public Attributes getCurrent() {
+            return current;
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + key;
+        }
+    }
+
+    private final AdvancedParams params;
+    private final DicomNode callingNode;
+    private final DicomNode calledNode;
+    private final DicomParam[] keys;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong refreshCount = new AtomicLong();
+    private final AtomicLong failedRefreshCount = new AtomicLong();
+    private volatile Map<String, Attributes> items = Collections.emptyMap();
+    private volatile long lastRefreshTime;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param params
+     *            optional advanced parameters (proxy, authentication, connection and TLS)
+     * @param callingNode
+     *            the calling DICOM node configuration
+     * @param calledNode
+     *            the called DICOM node configuration (the worklist provider)
+     * @param keys
+     *            the matching and returning keys of the refresh query (e.g. ScheduledStationAETitle). The keys of
+     *            the local queries must be among these returning keys.
+     */
+    public WorklistCache(AdvancedParams params, DicomNode callingNode, DicomNode calledNode, DicomParam... keys) {
+        this.params = params;
+        this.callingNode = Objects.requireNonNull(callingNode);
+        this.calledNode = Objects.requireNonNull(calledNode);
+        this.keys = withIdentifiers(keys);
+    }
+
+    private static DicomParam[] withIdentifiers(DicomParam[] keys) {
+        List<DicomParam> list = new ArrayList<>(keys.length + 2);
+        Collections.addAll(list, keys);
+        if (list.stream().noneMatch(p -> p.getTag() == Tag.StudyInstanceUID && p.getParentSeqTags() == null)) {
+            list.add(new DicomParam(Tag.StudyInstanceUID));
+        }
+        if (list.stream()
+            .noneMatch(p -> p.getTag() == Tag.ScheduledProcedureStepID && p.getParentSeqTags() != null)) {
+            list.add(ModalityWorklist.ScheduledProcedureStepID);
+        }
+        return list.toArray(new DicomParam[0]);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start the periodic refresh, the first one is immediate
+     *
+     * @param period
+     *            the time between two refreshes
+     * @param unit
+     *            the unit of the period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "worklist-cache");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    refresh();
+                } catch (Exception e) {
+                    LOGGER.error("Worklist refresh", e);
+                }
+            }, 0, period, unit);
+        }
+    }
+
+    /**
+     * Query the worklist provider and notify the changes. When the query fails, the previous items are kept.
+     *
+     * @return the state of the query (status and message, without matches)
+     */
+    public synchronized DicomState refresh() {
+        DicomState state = ModalityWorklist.process(params, callingNode, calledNode, keys);
+        if (state.getStatus() != Status.Success) {
+            failedRefreshCount.incrementAndGet();
+            LOGGER.warn("Worklist refresh failed, keep the previous items: {}", state.getMessage());
+            return new DicomState(state.getStatus(), state.getMessage(), null);
+        }
+
+        Map<String, Attributes> current = new LinkedHashMap<>();
+        synchronized (state.getDicomRSP()) {
+            for (Attributes item : state.getDicomRSP()) {
+                current.put(getKey(item), item);
+            }
+        }
+        List<Change> changes = diff(items, current);
+
+        items = Collections.unmodifiableMap(current);
+        lastRefreshTime = System.currentTimeMillis();
+        refreshCount.incrementAndGet();
+        if (!changes.isEmpty()) {
+            LOGGER.debug("Worklist changes: {}", changes);
+            for (Listener listener : listeners) {
+                try {
+                    listener.worklistChanged(Collections.unmodifiableList(changes));
+                } catch (Exception e) {
+                    LOGGER.error("Worklist listener", e);
+                }
+            }
+        }
+        return new DicomState(state.getStatus(), state.getMessage(), null);
+    }
+
+    /**
+     * @return the changes from the previous items to the current ones, both keyed by getKey()
+     */
+    static List<Change> diff(Map<String, Attributes> previous, Map<String, Attributes> current) {
+        List<Change> changes = new ArrayList<>();
+        for (Map.Entry<String, Attributes> entry : current.entrySet()) {
+            Attributes old = previous.get(entry.getKey());
+            if (old == null) {
+                changes.add(new Change(Change.Type.ADDED, entry.getKey(), null, entry.getValue()));
+            } else if (!old.equals(entry.getValue())) {
+                changes.add(new Change(Change.Type.CHANGED, entry.getKey(), old, entry.getValue()));
+            }
+        }
+        for (Map.Entry<String, Attributes> entry : previous.entrySet()) {
+            if (!current.containsKey(entry.getKey())) {
+                changes.add(new Change(Change.Type.REMOVED, entry.getKey(), entry.getValue(), null));
+            }
+        }
+        return changes;
+    }
+
+    static String getKey(Attributes item) {
+        Attributes sps = item.getNestedDataset(Tag.ScheduledProcedureStepSequence);
+        String spsID = sps == null ? null : sps.getString(Tag.ScheduledProcedureStepID);
+        String studyUID = item.getString(Tag.StudyInstanceUID);
+        if (spsID == null && studyUID == null) {
+            // No identifier, fall back to the accession number and the patient
+            return item.getString(Tag.AccessionNumber, "") + '|' + item.getString(Tag.PatientID, "");
+        }
+        return spsID + '|' + studyUID;
+    }
+
+    /**
+     * @return copies of all the items of the last successful refresh
+     */
+    public List<Attributes> getItems() {
+        return query(new Attributes(0));
+    }
+
+    /**
+     * Query the local worklist
+     *
+     * @param keys
+     *            the matching keys, nested in the Scheduled Procedure Step Sequence when needed (see
+     *            ModalityWorklist)
+     * @return copies of the matching items
+     */
+    public List<Attributes> query(DicomParam... keys) {
+        Attributes filter = new Attributes();
+        ModalityWorklist.addKeys(filter, keys);
+        return query(filter);
+    }
+
+    /**
+     * Query the local worklist
+     *
+     * @param filter
+     *            the matching keys, with the C-FIND matching rules
+     * @return copies of the matching items
+     */
+    public List<Attributes> query(Attributes filter) {
+        List<Attributes> list = new ArrayList<>();
+        for (Attributes item : items.values()) {
+            if (item.matches(filter, true, true)) {
+                list.add(new Attributes(item));
+            }
+        }
+        return list;
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * @return the time of the last successful refresh in milliseconds, 0 when none
+     */
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    public long getFailedRefreshCount() {
+        return failedRefreshCount.get();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (scheduler != null) {
+            ServiceUtil.shutdownService(scheduler);
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.imageio.codec.Compressor;
+import org.dcm4che3.imageio.codec.TransferSyntaxType;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Compresses the received files with a lossless transfer syntax in low-priority background threads. Only the
+ * uncompressed images are processed, the compressed file replaces the original one only when it is smaller.
+ * <p>
+ * The encoder of the transfer syntax must be available (JPEG-LS requires the native codecs of dcm4che-imageio-opencv),
+ * otherwise the compression is disabled after the first failure.
+ */
+public class BackgroundCompressor implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BackgroundCompressor.class);
+
+    public static final String TMP_EXTENSION = ".cmp";
+
+    private final String targetTsuid;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger compressed = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final Set<CompressionTask> tasks = ConcurrentHashMap.newKeySet();
+    private volatile boolean disabled;
+
+    public BackgroundCompressor() {
+        this(UID.JPEGLSLossless, 1);
+    }
+
+    /**
+     * @param targetTsuid
+     *            the lossless transfer syntax of the compressed files
+     * @param threads
+     *            the number of compression threads
+     */
+    public BackgroundCompressor(String targetTsuid, int threads) {
+        this.targetTsuid = targetTsuid == null ? UID.JPEGLSLossless : targetTsuid;
+        int nbThreads = Math.max(1, threads);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(nbThreads, nbThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "background-compressor-" + count.incrementAndGet());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public String getTargetTsuid() {
+        return targetTsuid;
+    }
+
+    /**
+     * Queue the compression of a file. This method never blocks.
+     *
+     * @param file
+     *            the DICOM file to compress
+     */
+    public void submit(File file) {
+        submit(file, null, null);
+    }
+
+    /**
+     * Queue the compression of a file. This method never blocks.
+     *
+     * @param file
+     *            the DICOM file to compress
+     * @param studyUID
+     *            the Study Instance UID of the file for canceling the compression (see cancelStudy), can be null
+     * @param onCompressed
+     *            called when the file has been replaced by its compressed version, can be null
+     */
+    public void submit(File file, String studyUID, Consumer<File> onCompressed) {
+        if (disabled) {
+            skipped.incrementAndGet();
+            return;
+        }
+        CompressionTask task = new CompressionTask(file, studyUID, onCompressed);
+        tasks.add(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            tasks.remove(task);
+            LOGGER.warn("The compressor is closed, {} is not compressed", file);
+        }
+    }
+
+    /**
+     * Cancel the pending compressions of a study. Must be called before deleting its files, a compressed file is never
+     * written after this call.
+     *
+     * @param studyUID
+     *            the Study Instance UID
+     */
+    public void cancelStudy(String studyUID) {
+        if (studyUID == null) {
+            return;
+        }
+        for (CompressionTask task : tasks) {
+            if (studyUID.equals(task.studyUID)) {
+                task.cancel();
+                executor.remove(task);
+                tasks.remove(task);
+            }
+        }
+    }
+
+    /**
+     * @return true when the compression has been disabled because the encoder cannot be loaded
+     */
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    private class CompressionTask implements Runnable {
+        private final File file;
+        private final String studyUID;
+        private final Consumer<File> onCompressed;
+        private boolean canceled;
+
+        CompressionTask(File file, String studyUID, Consumer<File> onCompressed) {
+            this.file = file;
+            this.studyUID = studyUID;
+            this.onCompressed = onCompressed;
+        }
+
+        synchronized void cancel() {
+            canceled = true;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (disabled || isCanceled() || !compress(file, targetTsuid, this::replaceIfNotCanceled)) {
+                    skipped.incrementAndGet();
+                    return;
+                }
+                compressed.incrementAndGet();
+                if (onCompressed != null) {
+                    onCompressed.accept(file);
+                }
+            } catch (LinkageError e) {
+                // Missing native codec: the next files would fail in the same way
+                skipped.incrementAndGet();
+                if (!disabled) {
+                    disabled = true;
+                    LOGGER.error("Cannot load the encoder of {}, the background compression is disabled", targetTsuid,
+                        e);
+                }
+            } catch (Exception e) {
+                skipped.incrementAndGet();
+                LOGGER.error("Cannot compress {}", file, e);
+            } finally {
+                tasks.remove(this);
+            }
+        }
+
+        private synchronized boolean isCanceled() {
+            return canceled;
+        }
+
+        private synchronized boolean replaceIfNotCanceled(File tmp) throws IOException {
+            if (canceled || !file.exists()) {
+                return false;
+            }
+            replace(tmp, file);
+            return true;
+        }
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int getCompressedCount() {
+        return compressed.get();
+    }
+
+    public int getSkippedCount() {
+        return skipped.get();
+    }
+
+    @FunctionalInterface
+    private interface FileReplacer {
+        boolean replace(File tmp) throws IOException;
+    }
+
+    /**
+     * Compress a DICOM file and replace it atomically.
+     *
+     * @param file
+     *            the DICOM file
+     * @param targetTsuid
+     *            the lossless transfer syntax
+     * @return true when the file has been replaced by its compressed version
+     * @throws IOException
+     */
+    public static boolean compress(File file, String targetTsuid) throws IOException {
+        return compress(file, targetTsuid, tmp -> {
+            replace(tmp, file);
+            return true;
+        });
+    }
+
+    private static boolean compress(File file, String targetTsuid, FileReplacer replacer) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + TMP_EXTENSION);
+        try (DicomInputStream dis = new DicomInputStream(file)) {
+            dis.setIncludeBulkData(IncludeBulkData.URI);
+            Attributes fmi = dis.readFileMetaInformation();
+            Attributes dataset = dis.readDataset(-1, -1);
+            String tsuid = dis.getTransferSyntax();
+            if (fmi == null || !dataset.containsValue(Tag.PixelData)
+                || TransferSyntaxType.forUID(tsuid) != TransferSyntaxType.NATIVE) {
+                return false;
+            }
+
+            Compressor compressor = new Compressor(dataset, tsuid);
+            try {
+                compressor.compress(targetTsuid);
+                fmi.setString(Tag.TransferSyntaxUID, VR.UI, targetTsuid);
+                try (DicomOutputStream out = new DicomOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024), UID.ExplicitVRLittleEndian)) {
+                    out.writeDataset(fmi, dataset);
+                }
+            } catch (UnsupportedOperationException e) {
+                LOGGER.debug("Cannot compress {} to {}: {}", file, targetTsuid, e.getMessage());
+                FileUtil.delete(tmp);
+                return false;
+            } finally {
+                compressor.close();
+            }
+        } catch (IOException | RuntimeException | LinkageError e) {
+            FileUtil.delete(tmp);
+            throw e;
+        }
+
+        if (tmp.length() >= file.length()) {
+            FileUtil.delete(tmp);
+            return false;
+        }
+        try {
+            if (!replacer.replace(tmp)) {
+                FileUtil.delete(tmp);
+                return false;
+            }
+        } catch (IOException e) {
+            FileUtil.delete(tmp);
+            throw e;
+        }
+        LOGGER.debug("M-COMPRESS {} to {}", file, targetTsuid);
+        return true;
+    }
+
+    private static void replace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Compress all the queued files and stop the threads.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+                LOGGER.error("Background compression not completed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
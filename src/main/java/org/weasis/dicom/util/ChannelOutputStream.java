@@ -0,0 +1,141 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomOutputStream;
+
+/**
+ * OutputStream writing to a FileChannel through a buffer of a ByteBufferPool. The buffer is given back to the pool and
+ * the channel is closed when the stream is closed.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    private final FileChannel channel;
+    private final ByteBufferPool pool;
+    private ByteBuffer buffer;
+
+    public ChannelOutputStream(FileChannel channel, ByteBufferPool pool) {
+        this.channel = channel;
+        this.pool = pool;
+        this.buffer = pool.acquire();
+    }
+
+    /**
+     * Create a DICOM file and write its File Meta Information. The dataset must be written after with the transfer
+     * syntax of the File Meta Information.
+     *
+     * @param file
+     *            the file to create or to replace
+     * @param fmi
+     *            the File Meta Information
+     * @param pool
+     *            the pool of buffers
+     * @return the stream of the file
+     * @throws IOException
+     */
+    public static ChannelOutputStream openDicomFile(File file, Attributes fmi, ByteBufferPool pool)
+        throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+        ChannelOutputStream out = new ChannelOutputStream(channel, pool);
+        try {
+            // DicomOutputStream writes directly to the underlying stream, no need to flush or close it
+            @SuppressWarnings("resource")
+            DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian);
+            dos.writeFileMetaInformation(fmi);
+        } catch (IOException | RuntimeException e) {
+            out.close();
+            throw e;
+        }
+        return out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        // Always copy through the pooled direct buffer: writing a heap buffer makes the JDK allocate a temporary
+        // direct buffer of the same size
+        while (len > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer == null) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer != null && buffer.position() > 0) {
+            flushBuffer();
+        }
+    }
+
+    /**
+     * Force the written data on the disk
+     */
+    public void force() throws IOException {
+        flush();
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer == null) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            pool.release(buffer);
+            buffer = null;
+            channel.close();
+        }
+    }
+}
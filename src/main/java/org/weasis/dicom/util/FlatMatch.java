@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.util.Arrays;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.util.TagUtils;
+import org.weasis.dicom.param.DicomParam;
+
+/**
+ * Compact representation of a C-FIND match: only the string values of the tags of a Schema. A tag can be at the top
+ * level or in the first item of a sequence (one level, e.g. the Scheduled Procedure Step of a worklist item). Use it
+ * with a FindSCU.ResultHandler for keeping large results in memory (e.g. IMAGE level or worklist queries).
+ */
+public final class FlatMatch {
+
+    /**
+     * The tags kept in the FlatMatch, shared by all the matches of a query. Only the tags with a string or a numeric
+     * VR are allowed.
+     */
+    public static final class Schema {
+        // The sequence tag in the high bits (0 for a top-level tag) and the tag in the low bits
+        private final long[] keys;
+
+        /**
+         * @param tags
+         *            the top-level tags
+         * @throws IllegalArgumentException
+         *             when a tag has no string or numeric VR
+         */
+        public Schema(int... tags) {
+            this(Arrays.stream(tags).mapToLong(t -> toKey(0, t)).toArray());
+        }
+
+        private Schema(long[] keys) {
+            this.keys = Arrays.stream(keys).distinct().sorted().toArray();
+            for (long key : this.keys) {
+                int seqTag = (int) (key >>> 32);
+                if (seqTag != 0 && ElementDictionary.vrOf(seqTag, null) != VR.SQ) {
+                    throw new IllegalArgumentException("Not a sequence: " + TagUtils.toString(seqTag));
+                }
+                checkVR((int) key);
+            }
+        }
+
+        /**
+         * @param keys
+         *            the query keys, top-level keys or keys of a sequence without nesting
+         * @return the schema of the keys
+         * @throws IllegalArgumentException
+         *             when a key is nested in more than one sequence or has no string or numeric VR
+         */
+        public static Schema of(DicomParam... keys) {
+            long[] list = new long[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                int[] parents = keys[i].getParentSeqTags();
+                if (parents == null || parents.length == 0) {
+                    list[i] = toKey(0, keys[i].getTag());
+                } else if (parents.length == 1) {
+                    list[i] = toKey(parents[0], keys[i].getTag());
+                } else {
+                    throw new IllegalArgumentException(
+                        "More than one level of sequence: " + TagUtils.toString(keys[i].getTag()));
+                }
+            }
+            return new Schema(list);
+        }
+
+        private static long toKey(int seqTag, int tag) {
+            return ((long) seqTag << 32) | (tag & 0xFFFFFFFFL);
+        }
+
+        private static void checkVR(int tag) {
+            VR vr = ElementDictionary.vrOf(tag, null);
+            switch (vr) {
+                case SQ:
+                case OB:
+                case OD:
+                case OF:
+                case OL:
+                case OW:
+                case AT:
+                case UN:
+                    throw new IllegalArgumentException("Not a string or numeric VR: " + TagUtils.toString(tag) + " "
+                        + vr);
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * @return the top-level tags
+         */
+        public int[] getTags() {
+            return getTags(0);
+        }
+
+        /**
+         * @param seqTag
+         *            the sequence tag
+         * @return the tags of the sequence
+         */
+        public int[] getTags(int seqTag) {
+            return Arrays.stream(keys).filter(k -> (int) (k >>> 32) == seqTag).mapToInt(k -> (int) k).toArray();
+        }
+
+        public FlatMatch toMatch(Attributes attrs) {
+            String[] values = new String[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                int seqTag = (int) (keys[i] >>> 32);
+                Attributes item = seqTag == 0 ? attrs : attrs.getNestedDataset(seqTag);
+                String[] ss = item == null ? null : item.getStrings((int) keys[i]);
+                if (ss != null && ss.length > 0) {
+                    values[i] = ss.length == 1 ? ss[0] : String.join("\\", ss);
+                }
+            }
+            return new FlatMatch(this, values);
+        }
+    }
+
+    private final Schema schema;
+    private final String[] values;
+
+    private FlatMatch(Schema schema, String[] values) {
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return the value of a top-level tag (multiple values separated by a backslash), null when the tag is absent or
+     *         empty
+     */
+    public String getString(int tag) {
+        return getString(0, tag);
+    }
+
+    /**
+     * @param seqTag
+     *            the sequence tag, 0 for a top-level tag
+     * @param tag
+     *            the tag in the first item of the sequence
+     * @return the value (multiple values separated by a backslash), null when the tag is absent or empty
+     */
+    public String getString(int seqTag, int tag) {
+        int index = Arrays.binarySearch(schema.keys, Schema.toKey(seqTag, tag));
+        return index < 0 ? null : values[index];
+    }
+
+    public String[] getStrings(int tag) {
+        return getStrings(0, tag);
+    }
+
+    public String[] getStrings(int seqTag, int tag) {
+        String val = getString(seqTag, tag);
+        return val == null ? null : val.split("\\\\", -1);
+    }
+
+    /**
+     * @return the values in new Attributes, with the VR of the dictionary. The tags of a sequence are in its single
+     *         item.
+     */
+    public Attributes toAttributes() {
+        Attributes attrs = new Attributes(values.length);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                int seqTag = (int) (schema.keys[i] >>> 32);
+                int tag = (int) schema.keys[i];
+                Attributes item = attrs;
+                if (seqTag != 0) {
+                    item = attrs.getNestedDataset(seqTag);
+                    if (item == null) {
+                        item = new Attributes();
+                        attrs.newSequence(seqTag, 1).add(item);
+                    }
+                }
+                item.setString(tag, ElementDictionary.vrOf(tag, null), values[i].split("\\\\", -1));
+            }
+        }
+        return attrs;
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.ElementDictionary;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+
+/**
+ * An instance of the InstanceIndex: the location of the file and the key attributes of the patient, study, series and
+ * instance levels.
+ */
+public final class IndexedInstance {
+
+    /** The attributes kept in the index (the order is the one of the journal records) */
+    public static final int[] INDEXED_TAGS = { Tag.PatientName, Tag.PatientID, Tag.IssuerOfPatientID,
+        Tag.PatientBirthDate, Tag.PatientSex, Tag.StudyInstanceUID, Tag.StudyDate, Tag.StudyTime, Tag.AccessionNumber,
+        Tag.StudyID, Tag.StudyDescription, Tag.ReferringPhysicianName, Tag.SeriesInstanceUID, Tag.Modality,
+        Tag.SeriesNumber, Tag.SeriesDescription, Tag.SOPClassUID, Tag.SOPInstanceUID, Tag.InstanceNumber };
+
+    private static final String UTF_8 = "ISO_IR 192";
+
+    private final File file;
+    private final String path;
+    private final long size;
+    private final String transferSyntaxUID;
+    private final String[] values;
+
+    IndexedInstance(File file, String path, long size, String transferSyntaxUID, String[] values) {
+        this.file = file;
+        this.path = path;
+        this.size = size;
+        this.transferSyntaxUID = transferSyntaxUID;
+        this.values = values;
+    }
+
+    /**
+     * @return the values decoded with the Specific Character Set of the attributes
+     */
+    static String[] getValues(Attributes attributes) {
+        String[] values = new String[INDEXED_TAGS.length];
+        for (int i = 0; i < INDEXED_TAGS.length; i++) {
+            values[i] = attributes.getString(INDEXED_TAGS[i]);
+        }
+        return values;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    String[] getValues() {
+        return values;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getTransferSyntaxUID() {
+        return transferSyntaxUID;
+    }
+
+    /**
+     * @param tag
+     *            one of the INDEXED_TAGS
+     * @return the value or null when the tag is not indexed or has no value
+     */
+    public String getString(int tag) {
+        for (int i = 0; i < INDEXED_TAGS.length; i++) {
+            if (INDEXED_TAGS[i] == tag) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    public String getPatientID() {
+        return getString(Tag.PatientID);
+    }
+
+    public String getStudyInstanceUID() {
+        return getString(Tag.StudyInstanceUID);
+    }
+
+    public String getSeriesInstanceUID() {
+        return getString(Tag.SeriesInstanceUID);
+    }
+
+    public String getSopInstanceUID() {
+        return getString(Tag.SOPInstanceUID);
+    }
+
+    public Attributes toAttributes() {
+        return toAttributes(INDEXED_TAGS);
+    }
+
+    /**
+     * @param tags
+     *            the selection of INDEXED_TAGS
+     * @return the attributes having a value. The values are decoded strings, the Specific Character Set is UTF-8
+     *         (ISO_IR 192).
+     */
+    public Attributes toAttributes(int... tags) {
+        Attributes attrs = new Attributes(tags.length + 1);
+        attrs.setString(Tag.SpecificCharacterSet, VR.CS, UTF_8);
+        for (int tag : tags) {
+            String value = getString(tag);
+            if (value != null) {
+                attrs.setString(tag, ElementDictionary.vrOf(tag, null), value);
+            }
+        }
+        return attrs;
+    }
+
+    @Override
+    public String toString() {
+        return path + " " + Arrays.toString(values);
+    }
+}
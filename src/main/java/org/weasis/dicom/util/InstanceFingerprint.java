@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size and optional hash of the dataset of an instance, computed while the data is written. It allows to check whether
+ * a received instance is identical to the one already stored. Once finished, only the size and the hash are kept.
+ */
+public class InstanceFingerprint {
+
+    // Only used for detecting resent data, not for security
+    private static final String HASH_ALGORITHM = "MD5";
+
+    private enum State {
+        RECEIVING, COMPLETE, ABORTED
+    }
+
+    private MessageDigest digest;
+    private long size;
+    private byte[] hash;
+    private State state = State.RECEIVING;
+
+    /**
+     * @param withHash
+     *            true for computing the hash of the data, otherwise only the size is computed
+     */
+    public InstanceFingerprint(boolean withHash) {
+        if (withHash) {
+            try {
+                this.digest = MessageDigest.getInstance(HASH_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public void update(byte[] b, int off, int len) {
+        size += len;
+        if (digest != null) {
+            digest.update(b, off, len);
+        }
+    }
+
+    /**
+     * @param out
+     *            the stream receiving the data
+     * @return a stream computing the fingerprint of the data written to out
+     */
+    public OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                update(b, off, len);
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    /**
+     * End the computation when all the data has been received. The digest is released.
+     */
+    public synchronized void finish() {
+        if (state == State.RECEIVING) {
+            if (digest != null) {
+                hash = digest.digest();
+                digest = null;
+            }
+            state = State.COMPLETE;
+            notifyAll();
+        }
+    }
+
+    /**
+     * End the computation when the data has not been received or stored.
+     */
+    public synchronized void abort() {
+        if (state == State.RECEIVING) {
+            digest = null;
+            state = State.ABORTED;
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isComplete() {
+        return state == State.COMPLETE;
+    }
+
+    /**
+     * Wait for the end of a concurrent reception.
+     *
+     * @return true when the fingerprint is complete, false when aborted or when the timeout elapsed
+     * @throws InterruptedException
+     */
+    public synchronized boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (state == State.RECEIVING) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return state == State.COMPLETE;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the hash or null when not computed or not finished
+     */
+    public synchronized byte[] getHash() {
+        return hash;
+    }
+
+    /**
+     * @param other
+     *            the fingerprint of another instance, can be null
+     * @return true when both are complete, the sizes are equal and the hashes (when computed) are equal
+     */
+    public boolean matches(InstanceFingerprint other) {
+        if (other == null || !isComplete() || !other.isComplete() || other.size != size) {
+            return false;
+        }
+        byte[] h1 = getHash();
+        byte[] h2 = other.getHash();
+        if (h1 == null || h2 == null) {
+            return h1 == null && h2 == null;
+        }
+        return Arrays.equals(h1, h2);
+    }
+}
@@ -0,0 +1,657 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+import org.weasis.core.util.StringUtil;
+
+/**
+ * Index of the DICOM files of a storage folder (patient, study, series, instance to the file path, size, transfer
+ * syntax and key attributes). The index is kept in memory and every change is appended to a journal file, which is
+ * replayed when the index is opened. A journal ending with an incomplete record (e.g. after a crash) is truncated to
+ * the last valid record, and rebuild() allows to recreate the index from the files.
+ */
+public class InstanceIndex implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InstanceIndex.class);
+
+    public static final String INDEX_FILE_NAME = ".instance-index";
+
+    /**
+     * Notified after each change of the index, outside of its lock.
+     */
+    public interface Listener {
+        /**
+         * @param instance
+         *            the new instance
+         * @param replaced
+         *            the previous instance with the same SOP Instance UID or null
+         */
+        void instanceAdded(IndexedInstance instance, IndexedInstance replaced);
+
+        void instanceRemoved(IndexedInstance instance);
+
+        /**
+         * Called when all the instances have been replaced by rebuild()
+         */
+        void indexRebuilt();
+    }
+
+    private static final char ADD = 'A';
+    private static final char DELETE = 'D';
+    private static final int MIN_COMPACT_RECORDS = 10000;
+
+    private final File baseDir;
+    private final Path basePath;
+    private final File indexFile;
+    private final boolean sync;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final Map<String, IndexedInstance> instances = new HashMap<>();
+    private final Map<String, Set<String>> seriesInstances = new HashMap<>();
+    private final Map<String, Set<String>> studySeries = new HashMap<>();
+    private final Map<String, Set<String>> patientStudies = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private FileOutputStream journalStream;
+    private Writer journal;
+    private int journalRecords;
+
+    public InstanceIndex(File baseDir) throws IOException {
+        this(baseDir, new File(baseDir, INDEX_FILE_NAME), false);
+    }
+
+    /**
+     * @param baseDir
+     *            the storage folder, the paths of the files inside are relative to this folder
+     * @param indexFile
+     *            the journal file
+     * @param sync
+     *            true for forcing every change on the disk, otherwise the last changes may be lost on a system crash
+     * @throws IOException
+     */
+    public InstanceIndex(File baseDir, File indexFile, boolean sync) throws IOException {
+        this.baseDir = baseDir;
+        this.basePath = baseDir.toPath().toAbsolutePath().normalize();
+        this.indexFile = indexFile;
+        this.sync = sync;
+        boolean truncated = load();
+        if (truncated) {
+            compact();
+        } else {
+            openJournal();
+        }
+    }
+
+    public File getBaseDir() {
+        return baseDir;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Add or replace an instance.
+     *
+     * @param attributes
+     *            the attributes of the file including the File Meta Information, null for reading them from the file
+     * @param file
+     *            the stored file
+     * @return the new instance
+     * @throws IOException
+     */
+    public IndexedInstance add(Attributes attributes, File file) throws IOException {
+        Attributes attrs = attributes == null ? readHeader(file) : attributes;
+        String iuid = attrs.getString(Tag.SOPInstanceUID, attrs.getString(Tag.MediaStorageSOPInstanceUID));
+        if (!StringUtil.hasText(iuid)) {
+            throw new IOException("Missing SOP Instance UID in " + file);
+        }
+        String[] values = IndexedInstance.getValues(attrs);
+        values[indexOf(Tag.SOPInstanceUID)] = iuid;
+        if (values[indexOf(Tag.SOPClassUID)] == null) {
+            values[indexOf(Tag.SOPClassUID)] = attrs.getString(Tag.MediaStorageSOPClassUID);
+        }
+        IndexedInstance instance =
+            new IndexedInstance(file, toPath(file), file.length(), attrs.getString(Tag.TransferSyntaxUID), values);
+
+        IndexedInstance replaced;
+        lock.writeLock().lock();
+        try {
+            append(ADD, instance.getPath(), Long.toString(instance.getSize()), instance.getTransferSyntaxUID(),
+                values);
+            replaced = instances.get(iuid);
+            put(instance);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Listener listener : listeners) {
+            listener.instanceAdded(instance, replaced);
+        }
+        return instance;
+    }
+
+    public IndexedInstance add(File file) throws IOException {
+        return add(null, file);
+    }
+
+    /**
+     * @param iuid
+     *            the SOP Instance UID
+     * @return the removed instance or null
+     * @throws IOException
+     */
+    public IndexedInstance remove(String iuid) throws IOException {
+        IndexedInstance old;
+        lock.writeLock().lock();
+        try {
+            if (!instances.containsKey(iuid)) {
+                return null;
+            }
+            append(DELETE, iuid);
+            old = delete(iuid);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (Listener listener : listeners) {
+            listener.instanceRemoved(old);
+        }
+        return old;
+    }
+
+    public IndexedInstance getInstance(String iuid) {
+        lock.readLock().lock();
+        try {
+            return instances.get(iuid);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(String iuid) {
+        return getInstance(iuid) != null;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return instances.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> getPatientIDs() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(patientStudies.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> getStudyUIDs() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(studySeries.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<String> getStudyUIDs(String patientID) {
+        return getChildren(patientStudies, patientID);
+    }
+
+    public List<String> getSeriesUIDs(String studyUID) {
+        return getChildren(studySeries, studyUID);
+    }
+
+    public List<IndexedInstance> getInstancesOfSeries(String seriesUID) {
+        lock.readLock().lock();
+        try {
+            Set<String> iuids = seriesInstances.getOrDefault(seriesUID, Collections.emptySet());
+            List<IndexedInstance> list = new ArrayList<>(iuids.size());
+            for (String iuid : iuids) {
+                list.add(instances.get(iuid));
+            }
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<IndexedInstance> getInstancesOfStudy(String studyUID) {
+        lock.readLock().lock();
+        try {
+            List<IndexedInstance> list = new ArrayList<>();
+            for (String seriesUID : studySeries.getOrDefault(studyUID, Collections.emptySet())) {
+                for (String iuid : seriesInstances.getOrDefault(seriesUID, Collections.emptySet())) {
+                    list.add(instances.get(iuid));
+                }
+            }
+            return list;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return a snapshot of all the instances
+     */
+    public List<IndexedInstance> getInstances() {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(instances.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<String> getChildren(Map<String, Set<String>> map, String key) {
+        lock.readLock().lock();
+        try {
+            return new ArrayList<>(map.getOrDefault(key, Collections.emptySet()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Recreate the index from the DICOM files of the storage folder.
+     *
+     * @return the number of indexed files
+     * @throws IOException
+     */
+    public int rebuild() throws IOException {
+        return rebuild(Collections.emptyList());
+    }
+
+    /**
+     * Recreate the index from the DICOM files of the storage folder and of other root directories.
+     *
+     * @param otherRoots
+     *            the root directories outside the storage folder (e.g. the ones of StorageVolumes)
+     * @return the number of indexed files
+     * @throws IOException
+     */
+    public int rebuild(Collection<File> otherRoots) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        roots.add(basePath);
+        for (File root : otherRoots) {
+            Path path = root.toPath().toAbsolutePath().normalize();
+            if (!path.startsWith(basePath) && roots.stream().noneMatch(path::startsWith) && Files.isDirectory(path)) {
+                roots.add(path);
+            }
+        }
+
+        List<IndexedInstance> list = new ArrayList<>();
+        File tmpDir = new File(baseDir, "tmp");
+        for (Path root : roots) {
+            try (Stream<Path> stream = Files.walk(root)) {
+                stream.filter(Files::isRegularFile).map(Path::toFile).filter(f -> isIndexable(f, tmpDir))
+                    .forEach(f -> {
+                        try {
+                            Attributes attrs = readHeader(f);
+                            String[] values = IndexedInstance.getValues(attrs);
+                            if (values[indexOf(Tag.SOPInstanceUID)] != null) {
+                                list.add(new IndexedInstance(f, toPath(f), f.length(),
+                                    attrs.getString(Tag.TransferSyntaxUID), values));
+                            }
+                        } catch (IOException e) {
+                            LOGGER.debug("Not a DICOM file: {}", f, e);
+                        }
+                    });
+            }
+        }
+
+        int size;
+        lock.writeLock().lock();
+        try {
+            clearMaps();
+            list.forEach(this::put);
+            compact();
+            size = instances.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        listeners.forEach(Listener::indexRebuilt);
+        return size;
+    }
+
+    /**
+     * Open the index of a storage folder and recreate it from the files.
+     */
+    public static InstanceIndex rebuild(File baseDir) throws IOException {
+        InstanceIndex index = new InstanceIndex(baseDir);
+        index.rebuild();
+        return index;
+    }
+
+    private boolean isIndexable(File file, File tmpDir) {
+        String name = file.getName();
+        // Skip the temporary files of the writers and the study containers, which would replace the real instance
+        return !file.equals(indexFile) && !name.equals(indexFile.getName() + ".tmp")
+            && !name.endsWith(WriteBehindWriter.PART_EXTENSION) && !name.endsWith(BackgroundCompressor.TMP_EXTENSION)
+            && !name.endsWith(StudyContainerStore.CONTAINER_EXTENSION)
+            && !name.endsWith(StudyContainerStore.INDEX_EXTENSION) && !file.toPath().startsWith(tmpDir.toPath());
+    }
+
+    private static Attributes readHeader(File file) throws IOException {
+        try (DicomInputStream dis = new DicomInputStream(file)) {
+            dis.setIncludeBulkData(IncludeBulkData.NO);
+            Attributes fmi = dis.readFileMetaInformation();
+            Attributes attrs = dis.readDataset(-1, Tag.PixelData);
+            if (fmi != null) {
+                attrs.addAll(fmi);
+            } else {
+                attrs.setString(Tag.TransferSyntaxUID, VR.UI, dis.getTransferSyntax());
+            }
+            return attrs;
+        }
+    }
+
+    private String toPath(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return path.startsWith(basePath) ? basePath.relativize(path).toString() : path.toString();
+    }
+
+    private File toFile(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(baseDir, path);
+    }
+
+    private static int indexOf(int tag) {
+        for (int i = 0; i < IndexedInstance.INDEXED_TAGS.length; i++) {
+            if (IndexedInstance.INDEXED_TAGS[i] == tag) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Not indexed: " + tag);
+    }
+
+    private void put(IndexedInstance instance) {
+        String iuid = instance.getSopInstanceUID();
+        if (instances.containsKey(iuid)) {
+            delete(iuid);
+        }
+        instances.put(iuid, instance);
+        String seriesUID = instance.getSeriesInstanceUID();
+        String studyUID = instance.getStudyInstanceUID();
+        seriesInstances.computeIfAbsent(seriesUID, k -> new LinkedHashSet<>()).add(iuid);
+        studySeries.computeIfAbsent(studyUID, k -> new LinkedHashSet<>()).add(seriesUID);
+        patientStudies.computeIfAbsent(instance.getPatientID(), k -> new LinkedHashSet<>()).add(studyUID);
+    }
+
+    private IndexedInstance delete(String iuid) {
+        IndexedInstance old = instances.remove(iuid);
+        if (old != null) {
+            String seriesUID = old.getSeriesInstanceUID();
+            String studyUID = old.getStudyInstanceUID();
+            if (removeChild(seriesInstances, seriesUID, iuid) && removeChild(studySeries, studyUID, seriesUID)) {
+                removeChild(patientStudies, old.getPatientID(), studyUID);
+            }
+        }
+        return old;
+    }
+
+    private static boolean removeChild(Map<String, Set<String>> map, String key, String child) {
+        Set<String> children = map.get(key);
+        if (children != null) {
+            children.remove(child);
+            if (children.isEmpty()) {
+                map.remove(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void clearMaps() {
+        instances.clear();
+        seriesInstances.clear();
+        studySeries.clear();
+        patientStudies.clear();
+    }
+
+    private boolean load() throws IOException {
+        if (!indexFile.exists()) {
+            return false;
+        }
+        try (BufferedReader reader =
+            new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                List<String> fields = parseRecord(line);
+                if (fields == null) {
+                    LOGGER.warn("Invalid record in {}, the journal is truncated at line {}", indexFile,
+                        journalRecords + 1);
+                    return true;
+                }
+                journalRecords++;
+                if (fields.get(0).charAt(0) == DELETE) {
+                    delete(fields.get(1));
+                } else {
+                    String[] values = fields.subList(4, fields.size()).toArray(new String[0]);
+                    String path = fields.get(1);
+                    put(new IndexedInstance(toFile(path), path, Long.parseLong(fields.get(2)), fields.get(3), values));
+                }
+            }
+        }
+        return false;
+    }
+
+    private static List<String> parseRecord(String line) {
+        int crcIndex = line.lastIndexOf('\t');
+        if (crcIndex < 0) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(line.substring(0, crcIndex).getBytes(StandardCharsets.UTF_8));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(crcIndex + 1))) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        StringBuilder buf = new StringBuilder();
+        boolean isNull = false;
+        for (int i = 0; i <= crcIndex; i++) {
+            char c = i == crcIndex ? '\t' : line.charAt(i);
+            if (c == '\t') {
+                fields.add(isNull ? null : buf.toString());
+                buf.setLength(0);
+                isNull = false;
+            } else if (c == '\\' && i + 1 < crcIndex) {
+                char next = line.charAt(++i);
+                if (next == '0') {
+                    isNull = true;
+                } else {
+                    buf.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+                }
+            } else {
+                buf.append(c);
+            }
+        }
+        char type = fields.get(0) == null || fields.get(0).isEmpty() ? 0 : fields.get(0).charAt(0);
+        if ((type == DELETE && fields.size() == 2)
+            || (type == ADD && fields.size() == 4 + IndexedInstance.INDEXED_TAGS.length)) {
+            return fields;
+        }
+        return null;
+    }
+
+    private static String formatRecord(char type, String... fields) {
+        StringBuilder buf = new StringBuilder();
+        buf.append(type);
+        for (String field : fields) {
+            buf.append('\t');
+            appendField(buf, field);
+        }
+        return buf.toString();
+    }
+
+    private static String formatRecord(char type, String path, String size, String tsuid, String[] values) {
+        StringBuilder buf = new StringBuilder(formatRecord(type, path, size, tsuid));
+        for (String value : values) {
+            buf.append('\t');
+            appendField(buf, value);
+        }
+        return buf.toString();
+    }
+
+    private static void appendField(StringBuilder buf, String field) {
+        if (field == null) {
+            buf.append("\\0");
+            return;
+        }
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                default:
+                    buf.append(c);
+            }
+        }
+    }
+
+    private static void writeRecord(Writer writer, String record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        writer.write(record);
+        writer.write('\t');
+        writer.write(Long.toHexString(crc.getValue()));
+        writer.write('\n');
+    }
+
+    private void append(char type, String path, String size, String tsuid, String[] values) throws IOException {
+        writeToJournal(formatRecord(type, path, size, tsuid, values));
+    }
+
+    private void append(char type, String iuid) throws IOException {
+        writeToJournal(formatRecord(type, iuid));
+    }
+
+    private void writeToJournal(String record) throws IOException {
+        if (journal == null) {
+            throw new IOException("The index is closed");
+        }
+        writeRecord(journal, record);
+        journal.flush();
+        if (sync) {
+            journalStream.getChannel().force(false);
+        }
+        journalRecords++;
+    }
+
+    private void openJournal() throws IOException {
+        FileUtil.prepareToWriteFile(indexFile);
+        journalStream = new FileOutputStream(indexFile, true);
+        journal = new BufferedWriter(new OutputStreamWriter(journalStream, StandardCharsets.UTF_8));
+    }
+
+    private void closeJournal() {
+        FileUtil.safeClose(journal);
+        journal = null;
+        journalStream = null;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (journalRecords > MIN_COMPACT_RECORDS && journalRecords > 2 * instances.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrite the journal with only the current instances. The new journal replaces the old one atomically.
+     */
+    private void compact() throws IOException {
+        File tmp = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        FileUtil.prepareToWriteFile(tmp);
+        try (FileOutputStream out = new FileOutputStream(tmp);
+                        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (IndexedInstance instance : instances.values()) {
+                writeRecord(writer, formatRecord(ADD, instance.getPath(), Long.toString(instance.getSize()),
+                    instance.getTransferSyntaxUID(), instance.getValues()));
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        closeJournal();
+        try {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        journalRecords = instances.size();
+        openJournal();
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            closeJournal();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Keeps the storage folder of an InstanceIndex under a size and an age limit by deleting the least recently used
+ * studies. A study is used when it is received or retrieved. The eviction runs periodically in a low-priority
+ * background thread and deletes a limited number of studies by run, so it never stalls the reception.
+ * <p>
+ * The size of the studies is computed once from the index and then kept up to date from its changes, so any writer
+ * indexing its files is covered (StoreSCP, GetSCU and CGet with an InstanceIndex).
+ */
+public class StorageQuotaManager implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StorageQuotaManager.class);
+
+    @FunctionalInterface
+    public interface EvictionListener {
+        /**
+         * Called before deleting the files of a study
+         */
+        default void studyEvicting(String studyUID) {
+            // Nothing by default
+        }
+
+        /**
+         * Called after deleting the files of a study
+         */
+        void studyEvicted(String studyUID, List<IndexedInstance> instances);
+    }
+
+    private final InstanceIndex index;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final Map<String, Long> lastUsed = new ConcurrentHashMap<>();
+    private final Map<String, Long> studySizes = new HashMap<>();
+    private final List<EvictionListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong evictedStudies = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private volatile long usedBytes;
+    private final InstanceIndex.Listener indexListener = new InstanceIndex.Listener() {
+
+        @Override
+        public void instanceAdded(IndexedInstance instance, IndexedInstance replaced) {
+            synchronized (studySizes) {
+                if (replaced != null) {
+                    addSize(replaced.getStudyInstanceUID(), -replaced.getSize());
+                }
+                addSize(instance.getStudyInstanceUID(), instance.getSize());
+            }
+            recordReceived(instance.getStudyInstanceUID());
+        }
+
+        @Override
+        public void instanceRemoved(IndexedInstance instance) {
+            synchronized (studySizes) {
+                addSize(instance.getStudyInstanceUID(), -instance.getSize());
+            }
+        }
+
+        @Override
+        public void indexRebuilt() {
+            recount();
+        }
+    };
+    private volatile List<File> otherRoots = Collections.emptyList();
+    private long minRetentionMillis = TimeUnit.MINUTES.toMillis(5);
+    private int maxEvictionsByRun = 20;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param index
+     *            the index of the storage folder
+     * @param maxBytes
+     *            the maximum size of the indexed files, 0 for no limit
+     * @param maxAge
+     *            the maximum time since the last use of a study, 0 for no limit
+     * @param unit
+     *            the unit of maxAge
+     */
+    public StorageQuotaManager(InstanceIndex index, long maxBytes, long maxAge, TimeUnit unit) {
+        this.index = Objects.requireNonNull(index);
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = unit.toMillis(maxAge);
+        index.addListener(indexListener);
+        recount();
+    }
+
+    /**
+     * @param minRetention
+     *            the minimum time since the last use before a study can be evicted (protects the studies being
+     *            received)
+     */
+    public void setMinRetention(long minRetention, TimeUnit unit) {
+        this.minRetentionMillis = unit.toMillis(minRetention);
+    }
+
+    /**
+     * @param maxEvictionsByRun
+     *            the maximum number of studies deleted by run
+     */
+    public void setMaxEvictionsByRun(int maxEvictionsByRun) {
+        this.maxEvictionsByRun = Math.max(1, maxEvictionsByRun);
+    }
+
+    /**
+     * @param otherRoots
+     *            the root directories of the indexed files outside the storage folder (e.g. the ones of
+     *            StorageVolumes). The empty directories of an evicted study are deleted up to its root directory.
+     */
+    public void setOtherRoots(Collection<File> otherRoots) {
+        this.otherRoots = otherRoots == null ? Collections.emptyList() : new ArrayList<>(otherRoots);
+    }
+
+    public void addEvictionListener(EvictionListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeEvictionListener(EvictionListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void recordReceived(String studyUID) {
+        recordAccess(studyUID);
+    }
+
+    public void recordAccess(String studyUID) {
+        if (studyUID != null) {
+            lastUsed.put(studyUID, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return the size of the indexed files
+     */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getEvictedStudies() {
+        return evictedStudies.get();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * Start the periodic eviction
+     *
+     * @param period
+     *            the time between two runs
+     * @param unit
+     *            the unit of the period
+     */
+    public synchronized void start(long period, TimeUnit unit) {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "storage-quota");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    runOnce();
+                } catch (Exception e) {
+                    LOGGER.error("Storage eviction", e);
+                }
+            }, 0, period, unit);
+        }
+    }
+
+    /**
+     * Compute again the size of the studies from all the instances of the index. This is only required when the files
+     * have been changed without updating the index.
+     */
+    public void recount() {
+        Map<String, File> studyFiles = new HashMap<>();
+        synchronized (studySizes) {
+            studySizes.clear();
+            long total = 0;
+            for (IndexedInstance instance : index.getInstances()) {
+                studySizes.merge(instance.getStudyInstanceUID(), instance.getSize(), Long::sum);
+                studyFiles.putIfAbsent(instance.getStudyInstanceUID(), instance.getFile());
+                total += instance.getSize();
+            }
+            usedBytes = total;
+        }
+        // Studies stored before the start or by another process: the receive time is the one of a file
+        for (Entry<String, File> entry : studyFiles.entrySet()) {
+            lastUsed.computeIfAbsent(entry.getKey(), k -> entry.getValue().lastModified());
+        }
+    }
+
+    private void addSize(String studyUID, long size) {
+        // Called with the lock of studySizes
+        Long value = studySizes.merge(studyUID, size, Long::sum);
+        if (value != null && value <= 0) {
+            studySizes.remove(studyUID);
+        }
+        usedBytes += size;
+    }
+
+    /**
+     * Delete the least recently used studies exceeding the quota.
+     *
+     * @return the number of deleted studies
+     */
+    public int runOnce() {
+        synchronized (studySizes) {
+            lastUsed.keySet().retainAll(studySizes.keySet());
+        }
+
+        List<Entry<String, Long>> candidates = new ArrayList<>(lastUsed.entrySet());
+        candidates.sort(Entry.comparingByValue());
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Entry<String, Long> entry : candidates) {
+            long age = now - entry.getValue();
+            // The size is updated by the index when evicting a study
+            boolean overSize = maxBytes > 0 && usedBytes > maxBytes;
+            boolean tooOld = maxAgeMillis > 0 && age > maxAgeMillis;
+            if (!overSize && !tooOld) {
+                // Sorted by last use, the next studies are more recent
+                break;
+            }
+            if (age < minRetentionMillis) {
+                continue;
+            }
+            // The study may have been received or retrieved since the sorting
+            Long current = lastUsed.get(entry.getKey());
+            if (!entry.getValue().equals(current) || System.currentTimeMillis() - current < minRetentionMillis) {
+                continue;
+            }
+            evictStudy(entry.getKey());
+            evicted++;
+            if (evicted >= maxEvictionsByRun) {
+                break;
+            }
+        }
+        return evicted;
+    }
+
+    private long evictStudy(String studyUID) {
+        for (EvictionListener listener : listeners) {
+            try {
+                listener.studyEvicting(studyUID);
+            } catch (Exception e) {
+                LOGGER.error("Eviction listener", e);
+            }
+        }
+        List<IndexedInstance> instances = index.getInstancesOfStudy(studyUID);
+        long size = 0;
+        for (IndexedInstance instance : instances) {
+            try {
+                index.remove(instance.getSopInstanceUID());
+                size += instance.getSize();
+                File file = instance.getFile();
+                FileUtil.delete(file);
+                deleteEmptyParents(file.getParentFile());
+            } catch (IOException e) {
+                LOGGER.error("Cannot remove {} from the index", instance.getFile(), e);
+            }
+        }
+        lastUsed.remove(studyUID);
+        evictedStudies.incrementAndGet();
+        evictedBytes.addAndGet(size);
+        LOGGER.info("Evicted study {} ({} instances, {} bytes)", studyUID, instances.size(), size);
+        for (EvictionListener listener : listeners) {
+            try {
+                listener.studyEvicted(studyUID, instances);
+            } catch (Exception e) {
+                LOGGER.error("Eviction listener", e);
+            }
+        }
+        return size;
+    }
+
+    private void deleteEmptyParents(File dir) {
+        File current = dir == null ? null : dir.getAbsoluteFile();
+        File root = current == null ? null : getRootOf(current);
+        // The root is the directory itself or one of its parents
+        while (current != null && root != null && !current.equals(root)) {
+            String[] children = current.list();
+            if (children == null || children.length > 0 || !current.delete()) {
+                break;
+            }
+            current = current.getParentFile();
+        }
+    }
+
+    /**
+     * @return the storage folder or the other root directory containing the file (the deepest one), or null
+     */
+    private File getRootOf(File file) {
+        File root = null;
+        List<File> roots = new ArrayList<>(otherRoots);
+        roots.add(index.getBaseDir());
+        for (File r : roots) {
+            File dir = r.getAbsoluteFile();
+            if (file.toPath().startsWith(dir.toPath())
+                && (root == null || dir.toPath().getNameCount() > root.toPath().getNameCount())) {
+                root = dir;
+            }
+        }
+        return root;
+    }
+
+    @Override
+    public synchronized void close() {
+        index.removeListener(indexListener);
+        if (scheduler != null) {
+            ServiceUtil.shutdownService(scheduler);
+            scheduler = null;
+        }
+    }
+}
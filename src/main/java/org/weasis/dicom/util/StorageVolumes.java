@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Spreads the stored files over several root directories (e.g. one by disk volume). All the instances of a study are
+ * stored in the same root directory. With the LEAST_LOADED strategy, an instance index allows to find the volume of a
+ * study received before a restart.
+ */
+public class StorageVolumes {
+
+    public enum Strategy {
+        /** The volume is given by the hash of the Study Instance UID */
+        STUDY_HASH,
+        /** A new study goes to the volume having the fewest writes in progress */
+        LEAST_LOADED
+    }
+
+    public static class Volume {
+        private final File root;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong writtenFiles = new AtomicLong();
+        private final AtomicLong writtenBytes = new AtomicLong();
+        private final long startTime = System.nanoTime();
+        private long sampleTime = startTime;
+        private long sampleBytes;
+
+        Volume(File root) {
+            this.root = root;
+        }
+
+        public File getRoot() {
+            return root;
+        }
+
+        /**
+         * Must be called before writing a file on the volume
+         */
+        public void begin() {
+            inFlight.incrementAndGet();
+        }
+
+        /**
+         * Must be called when the write started by begin() has ended
+         *
+         * @param bytes
+         *            the size of the written file, 0 when the write has failed
+         */
+        public void end(long bytes) {
+            inFlight.decrementAndGet();
+            if (bytes > 0) {
+                writtenFiles.incrementAndGet();
+                writtenBytes.addAndGet(bytes);
+            }
+        }
+
+        /**
+         * @return the number of writes in progress (including the queued ones)
+         */
+        public int getQueueDepth() {
+            return inFlight.get();
+        }
+
+        public long getWrittenFiles() {
+            return writtenFiles.get();
+        }
+
+        public long getWrittenBytes() {
+            return writtenBytes.get();
+        }
+
+        public long getUsableSpace() {
+            return root.getUsableSpace();
+        }
+
+        /**
+         * @return the average throughput in bytes per second since the creation of the volume
+         */
+        public double getAverageThroughput() {
+            double seconds = (System.nanoTime() - startTime) / 1e9;
+            return seconds <= 0 ? 0 : writtenBytes.get() / seconds;
+        }
+
+        /**
+         * @return the throughput in bytes per second since the previous call of this method
+         */
+        public synchronized double sampleThroughput() {
+            long now = System.nanoTime();
+            long bytes = writtenBytes.get();
+            double seconds = (now - sampleTime) / 1e9;
+            double throughput = seconds <= 0 ? 0 : (bytes - sampleBytes) / seconds;
+            sampleTime = now;
+            sampleBytes = bytes;
+            return throughput;
+        }
+
+        @Override
+        public String toString() {
+            return root + " (queue: " + getQueueDepth() + ", files: " + getWrittenFiles() + ")";
+        }
+    }
+
+    public static final int DEFAULT_MAX_STUDIES = 10000;
+
+    private final Strategy strategy;
+    private final List<Volume> volumes;
+    private volatile int maxStudies = DEFAULT_MAX_STUDIES;
+    // Volumes of the least recently used studies (LEAST_LOADED), the others are found again in the instance index
+    private final Map<String, Volume> studyVolumes =
+        Collections.synchronizedMap(new LinkedHashMap<String, Volume>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Volume> eldest) {
+                return size() > maxStudies;
+            }
+        });
+    private volatile InstanceIndex instanceIndex;
+
+    public StorageVolumes(Strategy strategy, File... roots) {
+        this(strategy, Arrays.asList(roots));
+    }
+
+    /**
+     * @param strategy
+     *            the selection of the volume of a new study
+     * @param roots
+     *            the root directories
+     */
+    public StorageVolumes(Strategy strategy, List<File> roots) {
+        if (roots == null || roots.isEmpty()) {
+            throw new IllegalArgumentException("No storage volume");
+        }
+        this.strategy = strategy == null ? Strategy.STUDY_HASH : strategy;
+        List<Volume> list = new ArrayList<>(roots.size());
+        for (File root : roots) {
+            list.add(new Volume(root));
+        }
+        this.volumes = Collections.unmodifiableList(list);
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public List<Volume> getVolumes() {
+        return volumes;
+    }
+
+    /**
+     * @return the root directories of the volumes (e.g. for rebuilding the instance index)
+     */
+    public List<File> getRoots() {
+        List<File> roots = new ArrayList<>(volumes.size());
+        for (Volume volume : volumes) {
+            roots.add(volume.getRoot());
+        }
+        return roots;
+    }
+
+    /**
+     * @param instanceIndex
+     *            the index of the stored files, used for finding the volume of a study unknown in memory. Can be null.
+     */
+    public void setInstanceIndex(InstanceIndex instanceIndex) {
+        this.instanceIndex = instanceIndex;
+    }
+
+    /**
+     * @param maxStudies
+     *            the maximum number of studies whose volume is kept in memory (LEAST_LOADED strategy). The volume of
+     *            the other studies is found again in the instance index, so a study received before must be indexed
+     *            for staying on the same volume.
+     */
+    public void setMaxStudies(int maxStudies) {
+        this.maxStudies = Math.max(1, maxStudies);
+    }
+
+    public int getMaxStudies() {
+        return maxStudies;
+    }
+
+    /**
+     * @param studyUID
+     *            the Study Instance UID, can be null
+     * @return the volume of the study
+     */
+    public Volume select(String studyUID) {
+        if (studyUID == null) {
+            return getLeastLoaded();
+        }
+        if (strategy == Strategy.STUDY_HASH) {
+            return volumes.get(Math.floorMod(studyUID.hashCode(), volumes.size()));
+        }
+        return studyVolumes.computeIfAbsent(studyUID, k -> {
+            Volume volume = findVolumeOfStudy(k);
+            return volume == null ? getLeastLoaded() : volume;
+        });
+    }
+
+    /**
+     * @return the volume containing the indexed files of the study, or null
+     */
+    private Volume findVolumeOfStudy(String studyUID) {
+        InstanceIndex index = instanceIndex;
+        if (index == null) {
+            return null;
+        }
+        for (IndexedInstance instance : index.getInstancesOfStudy(studyUID)) {
+            Path file = instance.getFile().toPath().toAbsolutePath().normalize();
+            for (Volume volume : volumes) {
+                if (file.startsWith(volume.getRoot().toPath().toAbsolutePath().normalize())) {
+                    return volume;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Forget the volume of a study (LEAST_LOADED strategy). The next instance of the study can go to another volume.
+     */
+    public void forgetStudy(String studyUID) {
+        studyVolumes.remove(studyUID);
+    }
+
+    private Volume getLeastLoaded() {
+        Volume best = null;
+        long bestSpace = 0;
+        for (Volume volume : volumes) {
+            if (best == null || volume.getQueueDepth() < best.getQueueDepth()) {
+                best = volume;
+                bestSpace = -1;
+            } else if (volume.getQueueDepth() == best.getQueueDepth()) {
+                if (bestSpace < 0) {
+                    bestSpace = best.getUsableSpace();
+                }
+                long space = volume.getUsableSpace();
+                if (space > bestSpace) {
+                    best = volume;
+                    bestSpace = space;
+                }
+            }
+        }
+        return best;
+    }
+}
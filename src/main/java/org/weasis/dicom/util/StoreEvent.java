@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+
+/**
+ * Event emitted by the StoreEventService when an instance has been stored or when no instance of a study has been
+ * received during the quiet period.
+ */
+public class StoreEvent {
+
+    public enum Type {
+        INSTANCE_STORED, STUDY_COMPLETE
+    }
+
+    private final Type type;
+    private final long timestamp;
+    private final File file;
+    private final String patientID;
+    private final String studyInstanceUID;
+    private final String seriesInstanceUID;
+    private final String sopInstanceUID;
+    private final String sopClassUID;
+    private final String callingAet;
+    private final String calledAet;
+    private final int instanceCount;
+
+    /**
+     * Create an INSTANCE_STORED event
+     *
+     * @param attributes
+     *            the attributes of the instance (at least the UIDs)
+     * @param file
+     *            the stored file
+     * @param callingAet
+     *            the AETitle of the sender
+     * @param calledAet
+     *            the AETitle of the listener
+     */
+    public StoreEvent(Attributes attributes, File file, String callingAet, String calledAet) {
+        this(Type.INSTANCE_STORED, file, attributes.getString(Tag.PatientID),
+            attributes.getString(Tag.StudyInstanceUID), attributes.getString(Tag.SeriesInstanceUID),
+            attributes.getString(Tag.SOPInstanceUID, attributes.getString(Tag.MediaStorageSOPInstanceUID)),
+            attributes.getString(Tag.SOPClassUID, attributes.getString(Tag.MediaStorageSOPClassUID)), callingAet,
+            calledAet, 1);
+    }
+
+    StoreEvent(Type type, File file, String patientID, String studyInstanceUID, String seriesInstanceUID,
+        String sopInstanceUID, String sopClassUID, String callingAet, String calledAet, int instanceCount) {
+        this.type = type;
+        this.timestamp = System.currentTimeMillis();
+        this.file = file;
+        this.patientID = patientID;
+        this.studyInstanceUID = studyInstanceUID;
+        this.seriesInstanceUID = seriesInstanceUID;
+        this.sopInstanceUID = sopInstanceUID;
+        this.sopClassUID = sopClassUID;
+        this.callingAet = callingAet;
+        this.calledAet = calledAet;
+        this.instanceCount = instanceCount;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the stored file, null for STUDY_COMPLETE
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public String getPatientID() {
+        return patientID;
+    }
+
+    public String getStudyInstanceUID() {
+        return studyInstanceUID;
+    }
+
+    /**
+     * @return the Series Instance UID, null for STUDY_COMPLETE
+     */
+    public String getSeriesInstanceUID() {
+        return seriesInstanceUID;
+    }
+
+    /**
+     * @return the SOP Instance UID, null for STUDY_COMPLETE
+     */
+    public String getSopInstanceUID() {
+        return sopInstanceUID;
+    }
+
+    public String getSopClassUID() {
+        return sopClassUID;
+    }
+
+    /**
+     * @return the calling AETitle (the last one for STUDY_COMPLETE)
+     */
+    public String getCallingAet() {
+        return callingAet;
+    }
+
+    public String getCalledAet() {
+        return calledAet;
+    }
+
+    /**
+     * @return 1 for INSTANCE_STORED, the number of instances received since the previous STUDY_COMPLETE event of the
+     *         study otherwise
+     */
+    public int getInstanceCount() {
+        return instanceCount;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + (type == Type.STUDY_COMPLETE ? studyInstanceUID : sopInstanceUID) + " from " + callingAet;
+    }
+}
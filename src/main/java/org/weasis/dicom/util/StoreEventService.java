@@ -0,0 +1,192 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pushes the StoreEvent to the registered listeners and bounded queues. The events are delivered in order by a
+ * dedicated thread, so a slow consumer never delays the response to the sender. When a queue is full the new events
+ * are dropped for this queue and counted.
+ * <p>
+ * A STUDY_COMPLETE event is emitted when no instance of a study has been stored during the quiet period.
+ */
+public class StoreEventService implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StoreEventService.class);
+
+    @FunctionalInterface
+    public interface Listener {
+        void onEvent(StoreEvent event);
+    }
+
+    private static class StudyActivity {
+        ScheduledFuture<?> timer;
+        long deadline;
+        int count;
+        String patientID;
+        String callingAet;
+        String calledAet;
+    }
+
+    private final long quietPeriodMillis;
+    private final ScheduledExecutorService executor;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<BlockingQueue<StoreEvent>> queues = new CopyOnWriteArrayList<>();
+    private final Map<String, StudyActivity> studies = new HashMap<>();
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    /**
+     * @param quietPeriod
+     *            the time without new instance before considering a study as complete
+     * @param unit
+     *            the unit of the quiet period
+     */
+    public StoreEventService(long quietPeriod, TimeUnit unit) {
+        this.quietPeriodMillis = unit.toMillis(quietPeriod);
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "store-events");
+            t.setDaemon(true);
+            return t;
+        });
+        // Do not keep the cancelled study timers in the queue until their delay expires
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.executor = scheduler;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param capacity
+     *            the maximum number of events waiting in the queue
+     * @return a new queue receiving the events
+     */
+    public BlockingQueue<StoreEvent> subscribe(int capacity) {
+        BlockingQueue<StoreEvent> queue = new ArrayBlockingQueue<>(capacity);
+        queues.add(queue);
+        return queue;
+    }
+
+    public void unsubscribe(BlockingQueue<StoreEvent> queue) {
+        queues.remove(queue);
+    }
+
+    /**
+     * @return the number of events not delivered because a queue was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Publish an INSTANCE_STORED event and restart the quiet period of the study. Each study has a single timer: a new
+     * instance only pushes back its deadline and the timer is rescheduled for the remaining time when it fires.
+     */
+    public void instanceStored(StoreEvent event) {
+        try {
+            executor.execute(() -> publish(event));
+            String studyUID = event.getStudyInstanceUID();
+            if (studyUID != null) {
+                synchronized (studies) {
+                    StudyActivity activity = studies.computeIfAbsent(studyUID, k -> new StudyActivity());
+                    activity.count++;
+                    activity.patientID = event.getPatientID();
+                    activity.callingAet = event.getCallingAet();
+                    activity.calledAet = event.getCalledAet();
+                    activity.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(quietPeriodMillis);
+                    if (activity.timer == null) {
+                        activity.timer =
+                            executor.schedule(() -> studyComplete(studyUID), quietPeriodMillis, TimeUnit.MILLISECONDS);
+                    }
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            LOGGER.debug("Event service closed, {} not published", event);
+        }
+    }
+
+    private void studyComplete(String studyUID) {
+        StudyActivity activity;
+        synchronized (studies) {
+            activity = studies.get(studyUID);
+            if (activity == null) {
+                return;
+            }
+            long remaining = activity.deadline - System.nanoTime();
+            if (remaining > 0) {
+                // New instances have been received during the quiet period
+                try {
+                    activity.timer = executor.schedule(() -> studyComplete(studyUID), remaining, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    studies.remove(studyUID);
+                }
+                return;
+            }
+            studies.remove(studyUID);
+        }
+        publish(new StoreEvent(StoreEvent.Type.STUDY_COMPLETE, null, activity.patientID, studyUID, null, null, null,
+            activity.callingAet, activity.calledAet, activity.count));
+    }
+
+    private void publish(StoreEvent event) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onEvent(event);
+            } catch (Exception e) {
+                LOGGER.error("Store event listener", e);
+            }
+        }
+        for (BlockingQueue<StoreEvent> queue : queues) {
+            if (!queue.offer(event)) {
+                droppedEvents.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Deliver the pending INSTANCE_STORED events and stop the service. The studies in their quiet period are not
+     * reported as complete.
+     */
+    @Override
+    public void close() {
+        synchronized (studies) {
+            studies.values().forEach(a -> a.timer.cancel(false));
+            studies.clear();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOGGER.error("Store events not delivered");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
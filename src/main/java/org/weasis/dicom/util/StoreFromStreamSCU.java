@@ -12,7 +12,13 @@ package org.weasis.dicom.util;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dcm4che3.data.Attributes;
 import org.dcm4che3.data.Tag;
@@ -40,6 +46,11 @@ public class StoreFromStreamSCU {
 
     private static Logger LOGGER = LoggerFactory.getLogger(StoreFromStreamSCU.class);
 
+    // Maximum number of presentation contexts in an A-ASSOCIATE-RQ (odd IDs from 1 to 255)
+    private static final int MAX_PRESENTATION_CONTEXTS = 128;
+    // Presentation contexts left free by the pre-proposition (up to 3 for a new SOP Class in addData)
+    private static final int RESERVED_PRESENTATION_CONTEXTS = 6;
+
     @FunctionalInterface
     public interface RSPHandlerFactory {
         DimseRSPHandler createDimseRSPHandler();
@@ -51,7 +62,9 @@ public class StoreFromStreamSCU {
     public final RelatedGeneralSOPClasses relSOPClasses = new RelatedGeneralSOPClasses();
     private Attributes attrs;
     private boolean relExtNeg;
-    private Association as;
+    private volatile Association as;
+    private final List<Association> drainingAssociations = new CopyOnWriteArrayList<>();
+    private final Deque<PresentationContext> preProposedContexts = new ArrayDeque<>();
 
     private final Device device;
     private final Connection conn ;
@@ -201,18 +214,95 @@ public class StoreFromStreamSCU {
                 rq.addCommonExtendedNegotiation(relSOPClasses.getCommonExtendedNegotiation(cuid));
             }
             if (!tsuid.equals(UID.ExplicitVRLittleEndian)) {
-                rq.addPresentationContext(new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1, cuid,
-                    UID.ExplicitVRLittleEndian));
+                addPresentationContext(cuid, UID.ExplicitVRLittleEndian);
             }
             if (!tsuid.equals(UID.ImplicitVRLittleEndian)) {
-                rq.addPresentationContext(new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1, cuid,
-                    UID.ImplicitVRLittleEndian));
+                addPresentationContext(cuid, UID.ImplicitVRLittleEndian);
+            }
+        }
+        return addPresentationContext(cuid, tsuid);
+    }
+
+    /**
+     * Add a presentation context required by the data. When the limit of 128 presentation contexts is reached, a
+     * context that was only pre-proposed is replaced.
+     */
+    private boolean addPresentationContext(String cuid, String tsuid) {
+        if (rq.getNumberOfPresentationContexts() >= MAX_PRESENTATION_CONTEXTS) {
+            PresentationContext old = preProposedContexts.pollLast();
+            if (old == null) {
+                LOGGER.warn("Cannot propose {} with {}: limit of {} presentation contexts", cuid, tsuid,
+                    MAX_PRESENTATION_CONTEXTS);
+                return false;
             }
+            rq.removePresentationContext(old);
         }
-        rq.addPresentationContext(new PresentationContext(rq.getNumberOfPresentationContexts() * 2 + 1, cuid, tsuid));
+        rq.addPresentationContext(new PresentationContext(nextPresentationContextID(), cuid, tsuid));
         return true;
     }
 
+    private int nextPresentationContextID() {
+        // IDs may be free in the middle after a replacement
+        for (int pcid = 1; pcid < MAX_PRESENTATION_CONTEXTS * 2; pcid += 2) {
+            if (rq.getPresentationContext(pcid) == null) {
+                return pcid;
+            }
+        }
+        throw new IllegalStateException("No free presentation context ID");
+    }
+
+    /**
+     * Propose in advance the storage presentation contexts of the transfer capabilities, so that a new SOP Class
+     * arriving during the transfer doesn't require a new association. For each SOP Class, a first presentation context
+     * with the native transfer syntaxes is proposed (the data can always be decompressed), then the other transfer
+     * syntaxes are added in separate presentation contexts. A few presentation contexts are left free for the data
+     * that has not been pre-proposed, and the pre-proposed contexts are replaced by such data when no more context is
+     * available.
+     *
+     * @param transferCapabilities
+     *            the transfer syntax UIDs by SOP Class UID (e.g. the ones read from store-tcs.properties)
+     * @return the number of presentation contexts of the association request
+     */
+    public int preProposeStorageContexts(Map<String, String[]> transferCapabilities) {
+        int max = MAX_PRESENTATION_CONTEXTS - RESERVED_PRESENTATION_CONTEXTS;
+        for (String cuid : transferCapabilities.keySet()) {
+            if (rq.getNumberOfPresentationContexts() >= max) {
+                break;
+            }
+            if (!rq.containsPresentationContextFor(cuid)) {
+                if (relExtNeg) {
+                    rq.addCommonExtendedNegotiation(relSOPClasses.getCommonExtendedNegotiation(cuid));
+                }
+                preProposeContext(new PresentationContext(nextPresentationContextID(), cuid,
+                    UID.ExplicitVRLittleEndian, UID.ImplicitVRLittleEndian));
+            }
+        }
+        for (Entry<String, String[]> entry : transferCapabilities.entrySet()) {
+            for (String tsuid : entry.getValue()) {
+                if (rq.getNumberOfPresentationContexts() >= max) {
+                    return rq.getNumberOfPresentationContexts();
+                }
+                if (rq.containsPresentationContextFor(entry.getKey())
+                    && !rq.containsPresentationContextFor(entry.getKey(), tsuid)) {
+                    preProposeContext(new PresentationContext(nextPresentationContextID(), entry.getKey(), tsuid));
+                }
+            }
+        }
+        return rq.getNumberOfPresentationContexts();
+    }
+
+    private void preProposeContext(PresentationContext pc) {
+        rq.addPresentationContext(pc);
+        preProposedContexts.add(pc);
+    }
+
+    /**
+     * @return true if the SOP Class and the Transfer Syntax are already in the association request
+     */
+    public boolean isProposed(String cuid, String tsuid) {
+        return rq.containsPresentationContextFor(cuid, tsuid);
+    }
+
     public void close() throws IOException, InterruptedException {
         if (as != null) {
             if (as.isReadyForDataTransfer()) {
@@ -220,6 +310,9 @@ public class StoreFromStreamSCU {
             }
             as.waitForSocketClose();
         }
+        for (Association a : drainingAssociations) {
+            a.waitForSocketClose();
+        }
     }
 
     public void open()
@@ -228,12 +321,39 @@ public class StoreFromStreamSCU {
         // TODO check inactivity of 30 sec and close
     }
 
+    /**
+     * Open a new association with the current presentation contexts, and then release the previous association in
+     * background once all its outstanding responses have been received. The device executor must allow two
+     * associations at the same time (see DeviceOpService).
+     */
+    public synchronized void reopen()
+        throws IOException, InterruptedException, IncompatibleConnectionException, GeneralSecurityException {
+        Association previous = as;
+        as = ae.connect(remote, rq);
+        if (previous != null) {
+            drainingAssociations.add(previous);
+            device.execute(() -> {
+                try {
+                    if (previous.isReadyForDataTransfer()) {
+                        previous.waitForOutstandingRSP();
+                        previous.release();
+                    }
+                    previous.waitForSocketClose();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IOException e) {
+                    LOGGER.error("Release previous association", e);
+                } finally {
+                    drainingAssociations.remove(previous);
+                }
+            });
+        }
+    }
+
     public Association getAssociation() {
         return as;
     }
 
-
-
     public int getNumberOfSuboperations() {
         return numberOfSuboperations;
     }
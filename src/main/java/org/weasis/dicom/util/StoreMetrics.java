@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the received instances. The same metrics can be shared by several StoreSCP, the counters by called
+ * AETitle distinguish them.
+ */
+public class StoreMetrics {
+
+    private final LongAdder storedInstances = new LongAdder();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder failedInstances = new LongAdder();
+    private final Map<String, LongAdder> instancesByCalledAet = new ConcurrentHashMap<>();
+
+    public void stored(String calledAet, long bytes) {
+        storedInstances.increment();
+        storedBytes.add(bytes);
+        if (calledAet != null) {
+            instancesByCalledAet.computeIfAbsent(calledAet, k -> new LongAdder()).increment();
+        }
+    }
+
+    public void failed() {
+        failedInstances.increment();
+    }
+
+    public long getStoredInstances() {
+        return storedInstances.sum();
+    }
+
+    public long getStoredBytes() {
+        return storedBytes.sum();
+    }
+
+    public long getFailedInstances() {
+        return failedInstances.sum();
+    }
+
+    /**
+     * @return the number of stored instances by called AETitle
+     */
+    public Map<String, Long> getInstancesByCalledAet() {
+        Map<String, Long> map = new TreeMap<>();
+        instancesByCalledAet.forEach((k, v) -> map.put(k, v.sum()));
+        return Collections.unmodifiableMap(map);
+    }
+
+    public void reset() {
+        storedInstances.reset();
+        storedBytes.reset();
+        failedInstances.reset();
+        instancesByCalledAet.clear();
+    }
+}
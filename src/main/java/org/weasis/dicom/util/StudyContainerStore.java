@@ -0,0 +1,478 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.CRC32;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomInputStream.IncludeBulkData;
+import org.dcm4che3.io.DicomOutputStream;
+import org.dcm4che3.util.UIDUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Stores the instances of a study in a single container file instead of one file by instance, which avoids most of the
+ * file system metadata operations. Each instance is appended as a complete DICOM file (preamble, File Meta Information
+ * and dataset) and its position is recorded in an index file next to the container. An index record is written only
+ * after the data, so a crash can only lose the last instance.
+ * <p>
+ * An instance stored again is appended and replaces the previous one in the index, the space of the previous one is not
+ * reclaimed.
+ */
+public class StudyContainerStore implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StudyContainerStore.class);
+
+    public static final String CONTAINER_EXTENSION = ".dcmc";
+    public static final String INDEX_EXTENSION = ".idx";
+
+    public static final class ContainerEntry {
+        private final String sopInstanceUID;
+        private final String sopClassUID;
+        private final String transferSyntaxUID;
+        private final long offset;
+        private final long length;
+
+        ContainerEntry(String sopInstanceUID, String sopClassUID, String transferSyntaxUID, long offset,
+            long length) {
+            this.sopInstanceUID = sopInstanceUID;
+            this.sopClassUID = sopClassUID;
+            this.transferSyntaxUID = transferSyntaxUID;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public String getSopInstanceUID() {
+            return sopInstanceUID;
+        }
+
+        public String getSopClassUID() {
+            return sopClassUID;
+        }
+
+        public String getTransferSyntaxUID() {
+            return transferSyntaxUID;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    private class Container {
+        final String studyUID;
+        final Map<String, ContainerEntry> entries = new LinkedHashMap<>();
+        FileChannel data;
+        FileChannel index;
+        int users;
+
+        Container(String studyUID) {
+            this.studyUID = studyUID;
+        }
+
+        synchronized void open() throws IOException {
+            if (data != null) {
+                return;
+            }
+            File dataFile = getContainerFile(studyUID);
+            File indexFile = getIndexFile(studyUID);
+            dataFile.getParentFile().mkdirs();
+            boolean valid = loadIndex(indexFile, dataFile.length());
+            data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+            if (!valid) {
+                // Rewrite the index without the invalid records
+                index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+                for (ContainerEntry e : entries.values()) {
+                    index.write(ByteBuffer.wrap(formatRecord(e)));
+                }
+                index.force(true);
+            } else {
+                index = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            }
+        }
+
+        private boolean loadIndex(File indexFile, long dataLength) throws IOException {
+            if (!indexFile.exists()) {
+                return true;
+            }
+            try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ContainerEntry e = parseRecord(line);
+                    if (e == null || e.offset + e.length > dataLength) {
+                        LOGGER.warn("Invalid record in {}, the index is truncated", indexFile);
+                        return false;
+                    }
+                    entries.put(e.sopInstanceUID, e);
+                }
+            }
+            return true;
+        }
+
+        synchronized ContainerEntry append(Attributes fmi, byte[] dataset) throws IOException {
+            open();
+            ByteArrayOutputStream header = new ByteArrayOutputStream(512);
+            try (DicomOutputStream out = new DicomOutputStream(header, UID.ExplicitVRLittleEndian)) {
+                out.writeFileMetaInformation(fmi);
+            }
+            long offset = data.size();
+            ByteBuffer[] buffers = { ByteBuffer.wrap(header.toByteArray()), ByteBuffer.wrap(dataset) };
+            long length = header.size() + (long) dataset.length;
+            try {
+                data.position(offset);
+                long written = 0;
+                while (written < length) {
+                    written += data.write(buffers);
+                }
+                if (sync) {
+                    data.force(false);
+                }
+                ContainerEntry e = new ContainerEntry(fmi.getString(Tag.MediaStorageSOPInstanceUID),
+                    fmi.getString(Tag.MediaStorageSOPClassUID), fmi.getString(Tag.TransferSyntaxUID), offset, length);
+                index.write(ByteBuffer.wrap(formatRecord(e)));
+                if (sync) {
+                    index.force(false);
+                }
+                entries.put(e.sopInstanceUID, e);
+                return e;
+            } catch (IOException e) {
+                data.truncate(offset);
+                throw e;
+            }
+        }
+
+        synchronized ContainerEntry getEntry(String iuid) throws IOException {
+            open();
+            return entries.get(iuid);
+        }
+
+        synchronized List<ContainerEntry> getEntries() throws IOException {
+            open();
+            return new ArrayList<>(entries.values());
+        }
+
+        synchronized void close() {
+            FileUtil.safeClose(data);
+            FileUtil.safeClose(index);
+            data = null;
+            index = null;
+        }
+    }
+
+    private final File rootDir;
+    private final boolean sync;
+    private final int maxOpenContainers;
+    private final LinkedHashMap<String, Container> containers = new LinkedHashMap<>(16, 0.75f, true);
+
+    public StudyContainerStore(File rootDir) {
+        this(rootDir, 64, false);
+    }
+
+    /**
+     * @param rootDir
+     *            the directory of the container files
+     * @param maxOpenContainers
+     *            the maximum number of containers kept open (the least recently used are closed)
+     * @param sync
+     *            true for forcing the data on the disk before returning from append()
+     */
+    public StudyContainerStore(File rootDir, int maxOpenContainers, boolean sync) {
+        this.rootDir = rootDir;
+        this.maxOpenContainers = Math.max(1, maxOpenContainers);
+        this.sync = sync;
+    }
+
+    public File getRootDir() {
+        return rootDir;
+    }
+
+    /**
+     * @param studyUID
+     *            the Study Instance UID
+     * @return the container file of the study
+     * @throws IllegalArgumentException
+     *             when studyUID is not a valid UID, as it is used as file name
+     */
+    public File getContainerFile(String studyUID) {
+        return new File(rootDir, checkUID(studyUID) + CONTAINER_EXTENSION);
+    }
+
+    private File getIndexFile(String studyUID) {
+        return new File(rootDir, checkUID(studyUID) + CONTAINER_EXTENSION + INDEX_EXTENSION);
+    }
+
+    private static String checkUID(String studyUID) {
+        // Only digits and dots, so the UID cannot reference another directory
+        if (!isValidUID(studyUID)) {
+            throw new IllegalArgumentException("Invalid Study Instance UID: " + studyUID);
+        }
+        return studyUID;
+    }
+
+    private static boolean isValidUID(String uid) {
+        return uid != null && UIDUtils.isValid(uid);
+    }
+
+    /**
+     * Append an instance to the container of its study.
+     *
+     * @param fmi
+     *            the File Meta Information
+     * @param dataset
+     *            the dataset encoded with the transfer syntax of the File Meta Information
+     * @return the entry of the instance
+     * @throws IOException
+     */
+    public ContainerEntry append(Attributes fmi, byte[] dataset) throws IOException {
+        String studyUID;
+        try (DicomInputStream in =
+            new DicomInputStream(new ByteArrayInputStream(dataset), fmi.getString(Tag.TransferSyntaxUID))) {
+            in.setIncludeBulkData(IncludeBulkData.NO);
+            studyUID = in.readDataset(-1, Tag.PixelData).getString(Tag.StudyInstanceUID);
+        }
+        return append(studyUID, fmi, dataset);
+    }
+
+    /**
+     * Append an instance to the container of a study.
+     *
+     * @param studyUID
+     *            the Study Instance UID
+     * @param fmi
+     *            the File Meta Information
+     * @param dataset
+     *            the dataset encoded with the transfer syntax of the File Meta Information
+     * @return the entry of the instance
+     * @throws IOException
+     */
+    public ContainerEntry append(String studyUID, Attributes fmi, byte[] dataset) throws IOException {
+        if (studyUID == null) {
+            throw new IOException("Missing Study Instance UID");
+        }
+        if (!isValidUID(studyUID)) {
+            throw new IOException("Invalid Study Instance UID: " + studyUID);
+        }
+        Container container = acquire(studyUID);
+        try {
+            return container.append(fmi, dataset);
+        } finally {
+            release(container);
+        }
+    }
+
+    public List<ContainerEntry> getEntries(String studyUID) throws IOException {
+        if (!isValidUID(studyUID) || !getContainerFile(studyUID).exists()) {
+            return new ArrayList<>();
+        }
+        Container container = acquire(studyUID);
+        try {
+            return container.getEntries();
+        } finally {
+            release(container);
+        }
+    }
+
+    /**
+     * @return the Study Instance UIDs of the containers
+     */
+    public List<String> getStudyUIDs() {
+        List<String> list = new ArrayList<>();
+        String[] names = rootDir.list((dir, name) -> name.endsWith(CONTAINER_EXTENSION));
+        if (names != null) {
+            for (String name : names) {
+                list.add(name.substring(0, name.length() - CONTAINER_EXTENSION.length()));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Open an instance of a container. The stream is a complete DICOM file.
+     *
+     * @param studyUID
+     *            the Study Instance UID
+     * @param iuid
+     *            the SOP Instance UID
+     * @return the stream of the instance (to be closed by the caller) or null when the instance is not in the container
+     * @throws IOException
+     */
+    public InputStream openInstance(String studyUID, String iuid) throws IOException {
+        if (!isValidUID(studyUID) || !getContainerFile(studyUID).exists()) {
+            return null;
+        }
+        ContainerEntry entry;
+        Container container = acquire(studyUID);
+        try {
+            entry = container.getEntry(iuid);
+        } finally {
+            release(container);
+        }
+        if (entry == null) {
+            return null;
+        }
+        FileChannel channel = FileChannel.open(getContainerFile(studyUID).toPath(), StandardOpenOption.READ);
+        channel.position(entry.offset);
+        return new RegionInputStream(Channels.newInputStream(channel), entry.length);
+    }
+
+    private Container acquire(String studyUID) {
+        List<Container> evicted = new ArrayList<>();
+        Container container;
+        synchronized (containers) {
+            container = containers.computeIfAbsent(studyUID, Container::new);
+            container.users++;
+            Iterator<Entry<String, Container>> it = containers.entrySet().iterator();
+            while (containers.size() > maxOpenContainers && it.hasNext()) {
+                Container c = it.next().getValue();
+                // Do not close a container in use, another instance would write in the same file
+                if (c.users == 0) {
+                    evicted.add(c);
+                    it.remove();
+                }
+            }
+        }
+        evicted.forEach(Container::close);
+        return container;
+    }
+
+    private void release(Container container) {
+        synchronized (containers) {
+            container.users--;
+        }
+    }
+
+    private static byte[] formatRecord(ContainerEntry e) {
+        String record = e.sopInstanceUID + '\t' + e.sopClassUID + '\t' + e.transferSyntaxUID + '\t' + e.offset + '\t'
+            + e.length;
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return (record + '\t' + Long.toHexString(crc.getValue()) + '\n').getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static ContainerEntry parseRecord(String line) {
+        int crcIndex = line.lastIndexOf('\t');
+        if (crcIndex < 0) {
+            return null;
+        }
+        String record = line.substring(0, crcIndex);
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(crcIndex + 1))) {
+            return null;
+        }
+        String[] fields = record.split("\t");
+        if (fields.length != 5) {
+            return null;
+        }
+        try {
+            return new ContainerEntry(fields[0], fields[1], fields[2], Long.parseLong(fields[3]),
+                Long.parseLong(fields[4]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        List<Container> list;
+        synchronized (containers) {
+            list = new ArrayList<>(containers.values());
+            containers.clear();
+        }
+        list.forEach(Container::close);
+    }
+
+    /**
+     * InputStream limited to a region of a container.
+     */
+    private static class RegionInputStream extends FilterInputStream {
+        private long remaining;
+
+        RegionInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
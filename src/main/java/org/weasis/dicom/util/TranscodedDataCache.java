@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Cache of the transcoded instances, keyed by SOP Instance UID and target Transfer Syntax UID. It allows to decode an
+ * instance only once when it is sent to several destinations. The most recently used entries are kept in memory, the
+ * evicted ones are moved to the cache directory (when defined) which is also limited in size.
+ * <p>
+ * Only unmodified instances must be cached: the key doesn't reflect the changes made by an attribute editor.
+ */
+public class TranscodedDataCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TranscodedDataCache.class);
+
+    @FunctionalInterface
+    public interface Encoder {
+        byte[] encode() throws IOException;
+    }
+
+    private final long maxMemoryBytes;
+    private final File cacheDir;
+    private final long maxDiskBytes;
+
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private final LinkedHashMap<String, File> disk = new LinkedHashMap<>(64, 0.75f, true);
+    private final Map<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private long memorySize;
+    private long diskSize;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public TranscodedDataCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null, 0);
+    }
+
+    /**
+     * @param maxMemoryBytes
+     *            the maximum size of the entries kept in memory
+     * @param cacheDir
+     *            the directory of the entries evicted from memory. Null will discard them.
+     * @param maxDiskBytes
+     *            the maximum size of the cache directory
+     */
+    public TranscodedDataCache(long maxMemoryBytes, File cacheDir, long maxDiskBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.cacheDir = cacheDir;
+        this.maxDiskBytes = maxDiskBytes;
+        if (cacheDir != null) {
+            cacheDir.mkdirs();
+        }
+    }
+
+    /**
+     * Get the encoded instance from the cache or encode it. Concurrent requests of the same instance wait for a single
+     * encoding.
+     *
+     * @param iuid
+     *            the SOP Instance UID
+     * @param tsuid
+     *            the Transfer Syntax UID of the encoded data
+     * @param encoder
+     *            the encoder called when the instance is not in the cache
+     * @return the encoded dataset (without File Meta Information)
+     * @throws IOException
+     */
+    public byte[] getOrEncode(String iuid, String tsuid, Encoder encoder) throws IOException {
+        String key = iuid + '_' + tsuid;
+        byte[] data = get(key);
+        if (data != null) {
+            hits.incrementAndGet();
+            return data;
+        }
+
+        CompletableFuture<byte[]> task = new CompletableFuture<>();
+        CompletableFuture<byte[]> running = pending.putIfAbsent(key, task);
+        if (running != null) {
+            hits.incrementAndGet();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw new IOException("Cannot encode " + iuid, e.getCause());
+            }
+        }
+
+        try {
+            data = get(key);
+            if (data == null) {
+                misses.incrementAndGet();
+                data = encoder.encode();
+                put(key, data);
+            }
+            task.complete(data);
+            return data;
+        } catch (IOException | RuntimeException e) {
+            task.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(key);
+        }
+    }
+
+    private byte[] get(String key) {
+        File file;
+        synchronized (this) {
+            byte[] data = memory.get(key);
+            if (data != null) {
+                return data;
+            }
+            file = disk.get(key);
+        }
+        if (file != null) {
+            try {
+                return Files.readAllBytes(file.toPath());
+            } catch (IOException e) {
+                // Evicted in the meantime
+                LOGGER.debug("Cannot read cached file {}", file, e);
+            }
+        }
+        return null;
+    }
+
+    private void put(String key, byte[] data) {
+        List<Entry<String, byte[]>> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (data.length <= maxMemoryBytes) {
+                byte[] old = memory.put(key, data);
+                memorySize += data.length - (old == null ? 0 : old.length);
+            } else {
+                evicted.add(new SimpleEntry<>(key, data));
+            }
+            Iterator<Entry<String, byte[]>> it = memory.entrySet().iterator();
+            while (memorySize > maxMemoryBytes && it.hasNext()) {
+                Entry<String, byte[]> entry = it.next();
+                memorySize -= entry.getValue().length;
+                evicted.add(new SimpleEntry<>(entry));
+                it.remove();
+            }
+        }
+        for (Entry<String, byte[]> entry : evicted) {
+            spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void spill(String key, byte[] data) {
+        if (cacheDir == null || data.length > maxDiskBytes) {
+            return;
+        }
+        File file = new File(cacheDir, key);
+        try {
+            Files.write(file.toPath(), data);
+        } catch (IOException e) {
+            LOGGER.error("Cannot write cached file {}", file, e);
+            return;
+        }
+
+        List<File> deleted = new ArrayList<>();
+        synchronized (this) {
+            if (disk.put(key, file) == null) {
+                diskSize += data.length;
+            }
+            Iterator<Entry<String, File>> it = disk.entrySet().iterator();
+            while (diskSize > maxDiskBytes && it.hasNext()) {
+                Entry<String, File> entry = it.next();
+                diskSize -= entry.getValue().length();
+                deleted.add(entry.getValue());
+                it.remove();
+            }
+        }
+        deleted.forEach(FileUtil::delete);
+    }
+
+    public void clear() {
+        List<File> deleted;
+        synchronized (this) {
+            deleted = new ArrayList<>(disk.values());
+            memory.clear();
+            disk.clear();
+            memorySize = 0;
+            diskSize = 0;
+        }
+        deleted.forEach(FileUtil::delete);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized long getMemorySize() {
+        return memorySize;
+    }
+
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.imageio.codec.Decompressor;
+import org.dcm4che3.io.DicomOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transcodes DICOM instances in a pool of worker threads. The encoded instances are handed over to the sender in the
+ * order of submission, and the memory of the instances in progress is bounded: submit() blocks when the limit is
+ * reached, which slows down the source of the data.
+ */
+public class TranscodingService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TranscodingService.class);
+
+    public static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * 1024 * 1024;
+
+    @FunctionalInterface
+    public interface EncodedDataSender {
+        void send(byte[] data, String tsuid) throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor sendExecutor;
+    private final Semaphore memory;
+    private final int maxPermits;
+    private TranscodedDataCache cache;
+    private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+
+    public TranscodingService() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_IN_FLIGHT_BYTES);
+    }
+
+    /**
+     * @param threads
+     *            the number of transcoding threads
+     * @param maxInFlightBytes
+     *            the maximum size of the decoded instances waiting to be sent. An instance bigger than this limit is
+     *            processed alone.
+     */
+    public TranscodingService(int threads, long maxInFlightBytes) {
+        int nbThreads = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(nbThreads, nbThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.executor.allowCoreThreadTimeOut(true);
+        // The sends are chained, one thread keeps them off the submitting thread
+        this.sendExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.sendExecutor.allowCoreThreadTimeOut(true);
+        this.maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxInFlightBytes / 1024));
+        this.memory = new Semaphore(maxPermits);
+    }
+
+    public TranscodedDataCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @param cache
+     *            the cache shared with other send operations, null for no cache
+     */
+    public void setCache(TranscodedDataCache cache) {
+        this.cache = cache;
+    }
+
+    public void submit(Attributes attributes, String tsuid, String targetTsuid, EncodedDataSender sender,
+        Consumer<Exception> errorHandler, Runnable cleanup) throws InterruptedException {
+        submit(attributes, null, tsuid, targetTsuid, sender, errorHandler, cleanup);
+    }
+
+    /**
+     * Decode the instance in a worker thread and then call the sender once all the instances submitted before have
+     * been sent.
+     *
+     * @param attributes
+     *            the dataset to encode
+     * @param cacheIuid
+     *            the SOP Instance UID for getting the data from the cache. Null when the dataset has been modified and
+     *            cannot be shared.
+     * @param tsuid
+     *            the transfer syntax of the dataset
+     * @param targetTsuid
+     *            the transfer syntax of the encoded data
+     * @param sender
+     *            the handler of the encoded data
+     * @param errorHandler
+     *            called when the instance cannot be encoded or sent
+     * @param cleanup
+     *            called when the dataset is not used anymore (e.g. for deleting the temporary bulk data files)
+     * @throws InterruptedException
+     */
+    public void submit(Attributes attributes, String cacheIuid, String tsuid, String targetTsuid,
+        EncodedDataSender sender, Consumer<Exception> errorHandler, Runnable cleanup) throws InterruptedException {
+        TranscodedDataCache dataCache = cacheIuid == null ? null : cache;
+        int permits = (int) Math.min(maxPermits, Math.max(1, estimateDecodedSize(attributes) / 1024));
+        memory.acquire(permits);
+        try {
+            CompletableFuture<byte[]> encoded = CompletableFuture.supplyAsync(() -> {
+                try {
+                    if (dataCache != null) {
+                        return dataCache.getOrEncode(cacheIuid, targetTsuid,
+                            () -> encode(attributes, tsuid, targetTsuid));
+                    }
+                    return encode(attributes, tsuid, targetTsuid);
+                } catch (Exception e) {
+                    errorHandler.accept(e);
+                    return null;
+                } finally {
+                    cleanup.run();
+                }
+            }, executor);
+
+            synchronized (this) {
+                tail = tail.thenCombineAsync(encoded, (v, data) -> {
+                    try {
+                        if (data != null) {
+                            sender.send(data, targetTsuid);
+                        }
+                    } catch (Exception e) {
+                        errorHandler.accept(e);
+                    } finally {
+                        memory.release(permits);
+                    }
+                    return null;
+                }, sendExecutor);
+            }
+        } catch (RuntimeException e) {
+            memory.release(permits);
+            throw e;
+        }
+    }
+
+    /**
+     * Wait until all the submitted instances have been sent.
+     */
+    public void flush() {
+        CompletableFuture<Void> last;
+        synchronized (this) {
+            last = tail;
+        }
+        try {
+            last.join();
+        } catch (CompletionException e) {
+            LOGGER.error("Transcoding", e);
+        }
+    }
+
+    public void shutdown() {
+        flush();
+        ServiceUtil.shutdownService(executor);
+        ServiceUtil.shutdownService(sendExecutor);
+    }
+
+    public static byte[] encode(Attributes attributes, String tsuid, String targetTsuid) throws IOException {
+        if (!targetTsuid.equals(tsuid)) {
+            Decompressor.decompress(attributes, tsuid);
+        }
+        ByteArrayOutputStream out =
+            new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, estimateDecodedSize(attributes) + 8192));
+        try (DicomOutputStream dos = new DicomOutputStream(out, targetTsuid)) {
+            dos.writeDataset(null, attributes);
+        }
+        return out.toByteArray();
+    }
+
+    public static long estimateDecodedSize(Attributes attributes) {
+        int rows = attributes.getInt(Tag.Rows, 0);
+        int columns = attributes.getInt(Tag.Columns, 0);
+        int samples = attributes.getInt(Tag.SamplesPerPixel, 1);
+        int bitsAllocated = attributes.getInt(Tag.BitsAllocated, 8);
+        int frames = attributes.getInt(Tag.NumberOfFrames, 1);
+        return (long) rows * columns * samples * ((bitsAllocated + 7) / 8) * Math.max(1, frames);
+    }
+}
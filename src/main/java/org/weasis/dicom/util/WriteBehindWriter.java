@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Attributes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.weasis.core.util.FileUtil;
+
+/**
+ * Writes the received instances in background threads. The data is first copied in memory (the queue is limited in
+ * size), then written in a temporary file next to the destination and renamed. The response to the sender can be
+ * returned after the enqueue, after the write or after the synchronization of the file on the disk. In the last case,
+ * each writer thread forces its file on the disk, and then a dedicated thread renames the files by groups and forces
+ * once each directory of the group, so that the final names are also durable.
+ */
+public class WriteBehindWriter implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteBehindWriter.class);
+
+    public static final String PART_EXTENSION = ".part";
+
+    public enum Durability {
+        /** Respond as soon as the data is in the queue */
+        AFTER_ENQUEUE,
+        /** Respond when the file is written (in the system cache) */
+        AFTER_WRITE,
+        /** Respond when the file and its directory entry are synchronized on the disk */
+        AFTER_SYNC
+    }
+
+    private static class SyncRequest {
+        final File part;
+        final File dest;
+        final CompletableFuture<File> done;
+
+        SyncRequest(File part, File dest, CompletableFuture<File> done) {
+            this.part = part;
+            this.dest = dest;
+            this.done = done;
+        }
+    }
+
+    private static final SyncRequest STOP_SYNC = new SyncRequest(null, null, null);
+    // A directory cannot be opened as a FileChannel on Windows, the rename is durable with NTFS journaling
+    private static final boolean SYNC_DIRECTORY = !System.getProperty("os.name", "").startsWith("Windows");
+
+    private final Durability durability;
+    private final ThreadPoolExecutor writers;
+    private final Semaphore memory;
+    private final int maxPermits;
+    private final int maxSyncBatch;
+    private final BlockingQueue<SyncRequest> syncQueue = new LinkedBlockingQueue<>();
+    private final Thread syncThread;
+
+    public WriteBehindWriter(Durability durability) {
+        this(durability, 2, 128L * 1024 * 1024, 64);
+    }
+
+    /**
+     * @param durability
+     *            when the response can be returned to the sender
+     * @param threads
+     *            the number of writer threads
+     * @param maxQueuedBytes
+     *            the maximum size of the data waiting to be written
+     * @param maxSyncBatch
+     *            the maximum number of files synchronized in one group
+     */
+    public WriteBehindWriter(Durability durability, int threads, long maxQueuedBytes, int maxSyncBatch) {
+        this.durability = durability == null ? Durability.AFTER_WRITE : durability;
+        int nbThreads = Math.max(1, threads);
+        this.writers = new ThreadPoolExecutor(nbThreads, nbThreads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        this.writers.allowCoreThreadTimeOut(true);
+        this.maxPermits = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxQueuedBytes / 1024));
+        this.memory = new Semaphore(maxPermits);
+        this.maxSyncBatch = Math.max(1, maxSyncBatch);
+        if (this.durability == Durability.AFTER_SYNC) {
+            this.syncThread = new Thread(this::syncLoop, "write-behind-sync");
+            this.syncThread.setDaemon(true);
+            this.syncThread.start();
+        } else {
+            this.syncThread = null;
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Queue the writing of an instance. Depending on the durability, this method returns immediately or waits for the
+     * write or the synchronization of the file.
+     *
+     * @param fmi
+     *            the File Meta Information
+     * @param dataset
+     *            the dataset encoded with the transfer syntax of the File Meta Information
+     * @param dest
+     *            the final file
+     * @return the future completed when the final file is written
+     * @throws IOException
+     *             when the file cannot be written (except with AFTER_ENQUEUE where the errors are only logged)
+     * @throws InterruptedException
+     */
+    public CompletableFuture<File> write(Attributes fmi, byte[] dataset, File dest) throws IOException, InterruptedException {
+        int permits = (int) Math.min(maxPermits, Math.max(1, dataset.length / 1024));
+        memory.acquire(permits);
+        CompletableFuture<File> done = new CompletableFuture<>();
+        done.whenComplete((f, t) -> memory.release(permits));
+        try {
+            writers.execute(() -> writeFile(fmi, dataset, dest, done));
+        } catch (RejectedExecutionException e) {
+            done.completeExceptionally(e);
+            throw new IOException("The writer is closed", e);
+        }
+
+        if (durability == Durability.AFTER_ENQUEUE) {
+            done.whenComplete((f, t) -> {
+                if (t != null) {
+                    LOGGER.error("Cannot write {}", dest, t);
+                }
+            });
+        } else {
+            try {
+                done.get();
+            } catch (ExecutionException e) {
+                throw new IOException("Cannot write " + dest, e.getCause());
+            }
+        }
+        return done;
+    }
+
+    private void writeFile(Attributes fmi, byte[] dataset, File dest, CompletableFuture<File> done) {
+        File part = new File(dest.getParentFile(), dest.getName() + PART_EXTENSION);
+        try {
+            LOGGER.debug("M-WRITE {}", part);
+            part.getParentFile().mkdirs();
+            try (ChannelOutputStream out = ChannelOutputStream.openDicomFile(part, fmi, ByteBufferPool.DEFAULT)) {
+                out.write(dataset);
+                if (durability == Durability.AFTER_SYNC) {
+                    // The writer threads force their files in parallel
+                    out.force();
+                }
+            }
+            if (durability == Durability.AFTER_SYNC) {
+                syncQueue.add(new SyncRequest(part, dest, done));
+            } else {
+                renameTo(part, dest);
+                done.complete(dest);
+            }
+        } catch (Exception e) {
+            FileUtil.delete(part);
+            done.completeExceptionally(e);
+        }
+    }
+
+    private void syncLoop() {
+        List<SyncRequest> batch = new ArrayList<>(maxSyncBatch);
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(syncQueue.take());
+                syncQueue.drainTo(batch, maxSyncBatch - 1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+            if (batch.remove(STOP_SYNC)) {
+                running = false;
+            }
+            syncBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private static void syncBatch(List<SyncRequest> batch) {
+        Map<Path, List<SyncRequest>> byDirectory = new LinkedHashMap<>();
+        for (SyncRequest r : batch) {
+            try {
+                renameTo(r.part, r.dest);
+                byDirectory.computeIfAbsent(r.dest.getParentFile().toPath(), k -> new ArrayList<>()).add(r);
+            } catch (Exception e) {
+                FileUtil.delete(r.part);
+                r.done.completeExceptionally(e);
+            }
+        }
+        for (Entry<Path, List<SyncRequest>> entry : byDirectory.entrySet()) {
+            try {
+                syncDirectory(entry.getKey());
+                entry.getValue().forEach(r -> r.done.complete(r.dest));
+            } catch (IOException e) {
+                entry.getValue().forEach(r -> r.done.completeExceptionally(e));
+            }
+        }
+    }
+
+    private static void syncDirectory(Path dir) throws IOException {
+        if (SYNC_DIRECTORY) {
+            try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+                channel.force(true);
+            }
+        }
+    }
+
+    private static void renameTo(File from, File dest) throws IOException {
+        LOGGER.info("M-RENAME {} to {}", from, dest);
+        FileUtil.prepareToWriteFile(dest);
+        if (!from.renameTo(dest)) {
+            throw new IOException("Failed to rename " + from + " to " + dest);
+        }
+    }
+
+    /**
+     * Write all the queued instances and stop the threads.
+     */
+    @Override
+    public void close() {
+        writers.shutdown();
+        try {
+            if (!writers.awaitTermination(5, TimeUnit.MINUTES)) {
+                LOGGER.error("Write-behind queue not completed");
+            }
+            if (syncThread != null) {
+                syncQueue.add(STOP_SYNC);
+                syncThread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.net.Status;
+import org.dcm4che3.net.service.QueryRetrieveLevel;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.DicomParam;
+import org.weasis.dicom.param.DicomState;
+
+public class CFindCacheTest {
+    private static final DicomNode CALLING = new DicomNode("WEASIS-SCU");
+    private static final DicomNode CALLED = new DicomNode("PACS", "localhost", 11112);
+
+    @Test
+    public void testKeyNormalization() {
+        String key = CFindCache.buildKey(null, CALLING, CALLED, QueryRetrieveLevel.STUDY,
+            new DicomParam(Tag.PatientID, "PAT1"), new DicomParam(Tag.StudyDate, "20200101-20200131"),
+            new DicomParam(Tag.StudyInstanceUID));
+
+        // Same keys in another order and with padding
+        Assert.assertEquals(key,
+            CFindCache.buildKey(null, CALLING, CALLED, QueryRetrieveLevel.STUDY,
+                new DicomParam(Tag.StudyInstanceUID), new DicomParam(Tag.StudyDate, "20200101-20200131 "),
+                new DicomParam(Tag.PatientID, " PAT1")));
+
+        // Another value, level, node or a nested key
+        Assert.assertNotEquals(key,
+            CFindCache.buildKey(null, CALLING, CALLED, QueryRetrieveLevel.STUDY, new DicomParam(Tag.PatientID, "PAT2"),
+                new DicomParam(Tag.StudyDate, "20200101-20200131"), new DicomParam(Tag.StudyInstanceUID)));
+        Assert.assertNotEquals(key,
+            CFindCache.buildKey(null, CALLING, CALLED, QueryRetrieveLevel.SERIES,
+                new DicomParam(Tag.PatientID, "PAT1"), new DicomParam(Tag.StudyDate, "20200101-20200131"),
+                new DicomParam(Tag.StudyInstanceUID)));
+        Assert.assertNotEquals(key,
+            CFindCache.buildKey(null, CALLING, new DicomNode("PACS", "localhost", 104), QueryRetrieveLevel.STUDY,
+                new DicomParam(Tag.PatientID, "PAT1"), new DicomParam(Tag.StudyDate, "20200101-20200131"),
+                new DicomParam(Tag.StudyInstanceUID)));
+        Assert.assertNotEquals(key,
+            CFindCache.buildKey(null, CALLING, CALLED, QueryRetrieveLevel.STUDY,
+                new DicomParam(new int[] { Tag.OtherPatientIDsSequence }, Tag.PatientID, "PAT1"),
+                new DicomParam(Tag.StudyDate, "20200101-20200131"), new DicomParam(Tag.StudyInstanceUID)));
+    }
+
+    @Test
+    public void testTimeToLive() throws InterruptedException {
+        CFindCache cache = new CFindCache(50, TimeUnit.MILLISECONDS, 10);
+        cache.put("key", new DicomState(Status.Success, null, null));
+        Assert.assertNotNull(cache.getValid("key"));
+        Assert.assertEquals(1, cache.size());
+
+        Thread.sleep(100);
+        Assert.assertNull(cache.getValid("key"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        CFindCache cache = new CFindCache(1, TimeUnit.HOURS, 2);
+        cache.put("key1", new DicomState(Status.Success, null, null));
+        cache.put("key2", new DicomState(Status.Success, null, null));
+        // key1 becomes the most recently used
+        Assert.assertNotNull(cache.getValid("key1"));
+        cache.put("key3", new DicomState(Status.Success, null, null));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.getValid("key1"));
+        Assert.assertNull(cache.getValid("key2"));
+    }
+
+    @Test
+    public void testInvalidateNode() {
+        CFindCache cache = new CFindCache(1, TimeUnit.HOURS, 10);
+        String key1 = CFindCache.buildKey(null, CALLING, CALLED, QueryRetrieveLevel.STUDY,
+            new DicomParam(Tag.PatientID, "PAT1"));
+        DicomNode other = new DicomNode("OTHER", "localhost", 11112);
+        String key2 = CFindCache.buildKey(null, CALLING, other, QueryRetrieveLevel.STUDY,
+            new DicomParam(Tag.PatientID, "PAT1"));
+        cache.put(key1, new DicomState(Status.Success, null, null));
+        cache.put(key2, new DicomState(Status.Success, null, null));
+
+        cache.invalidate(CALLED);
+        Assert.assertNull(cache.getValid(key1));
+        Assert.assertNotNull(cache.getValid(key2));
+        cache.invalidate();
+        Assert.assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomState;
+
+public class CFindResultsTest {
+
+    @Test
+    public void testReadAll() {
+        CFindResults results = new CFindResults(2);
+        results.start(handler -> {
+            for (int i = 0; i < 5; i++) {
+                handler.onResult(match(i));
+            }
+            return new DicomState(Status.Success, null, null);
+        });
+        int count = 0;
+        while (results.hasNext()) {
+            Assert.assertEquals(String.valueOf(count), results.next().getString(Tag.PatientID));
+            count++;
+        }
+        Assert.assertEquals(5, count);
+        Assert.assertEquals(Status.Success, results.getState().getStatus());
+        results.close();
+    }
+
+    @Test
+    public void testCloseWhileBlocked() throws InterruptedException {
+        CFindResults results = new CFindResults(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger sent = new AtomicInteger();
+        results.start(handler -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    if (i == 2) {
+                        // The queue is full, the next call blocks the association thread
+                        blocked.countDown();
+                    }
+                    sent.incrementAndGet();
+                    if (!handler.onResult(match(i))) {
+                        // The query is canceled
+                        return new DicomState(Status.Cancel, null, null);
+                    }
+                }
+                return new DicomState(Status.Success, null, null);
+            } finally {
+                done.countDown();
+            }
+        });
+        Assert.assertTrue(results.hasNext());
+        results.next();
+        Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        results.close();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(sent.get() < 100);
+        Assert.assertFalse(results.hasNext());
+        Assert.assertFalse(results.isTimedOut());
+    }
+
+    @Test
+    public void testReadTimeout() throws InterruptedException {
+        CFindResults results = new CFindResults(1, 100);
+        CountDownLatch done = new CountDownLatch(1);
+        results.start(handler -> {
+            try {
+                for (int i = 0; i < 100; i++) {
+                    if (!handler.onResult(match(i))) {
+                        return new DicomState(Status.Cancel, null, null);
+                    }
+                }
+                return new DicomState(Status.Success, null, null);
+            } finally {
+                done.countDown();
+            }
+        });
+        // Neither read nor closed
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(results.isTimedOut());
+        // A late consumer reads the end instead of blocking
+        Assert.assertFalse(results.hasNext());
+        Assert.assertEquals(Status.Cancel, results.getState().getStatus());
+        results.close();
+    }
+
+    private static Attributes match(int i) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientID, VR.LO, String.valueOf(i));
+        return attrs;
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.op;
+
+import java.time.LocalDate;
+import java.util.List;
+
+import org.dcm4che3.net.Status;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.op.DateRangeCFind.Chunk;
+
+public class DateRangeCFindTest {
+
+    @Test
+    public void testSplit() {
+        LocalDate from = LocalDate.of(2020, 1, 1);
+        LocalDate to = LocalDate.of(2020, 1, 10);
+        List<Chunk> chunks = DateRangeCFind.split(new Chunk(from, to), 3);
+        Assert.assertEquals(3, chunks.size());
+        // The first chunks take the remaining days
+        Assert.assertEquals(4, chunks.get(0).days());
+        Assert.assertEquals(3, chunks.get(1).days());
+        Assert.assertEquals(3, chunks.get(2).days());
+        assertContiguous(chunks, from, to);
+    }
+
+    @Test
+    public void testSplitAcrossMonthsAndYears() {
+        LocalDate from = LocalDate.of(2019, 12, 20);
+        LocalDate to = LocalDate.of(2020, 3, 1);
+        List<Chunk> chunks = DateRangeCFind.split(new Chunk(from, to), 7);
+        Assert.assertEquals(7, chunks.size());
+        assertContiguous(chunks, from, to);
+    }
+
+    @Test
+    public void testSplitMorePartsThanDays() {
+        LocalDate from = LocalDate.of(2020, 2, 28);
+        LocalDate to = LocalDate.of(2020, 3, 1);
+        List<Chunk> chunks = DateRangeCFind.split(new Chunk(from, to), 8);
+        // Leap year: one chunk by day
+        Assert.assertEquals(3, chunks.size());
+        for (Chunk c : chunks) {
+            Assert.assertEquals(1, c.days());
+        }
+        assertContiguous(chunks, from, to);
+
+        List<Chunk> single = DateRangeCFind.split(new Chunk(from, from), 2);
+        Assert.assertEquals(1, single.size());
+        Assert.assertEquals(from, single.get(0).from);
+        Assert.assertEquals(from, single.get(0).to);
+    }
+
+    @Test
+    public void testTruncated() {
+        Chunk chunk = new Chunk(LocalDate.of(2020, 1, 1), LocalDate.of(2020, 1, 2));
+        chunk.status = Status.Success;
+        chunk.matches = 99;
+        Assert.assertFalse(chunk.isTruncated(100));
+        chunk.matches = 100;
+        Assert.assertTrue(chunk.isTruncated(100));
+        chunk.matches = 10;
+        chunk.status = Status.OutOfResources;
+        Assert.assertTrue(chunk.isTruncated(100));
+    }
+
+    private static void assertContiguous(List<Chunk> chunks, LocalDate from, LocalDate to) {
+        Assert.assertEquals(from, chunks.get(0).from);
+        Assert.assertEquals(to, chunks.get(chunks.size() - 1).to);
+        for (int i = 1; i < chunks.size(); i++) {
+            Assert.assertEquals(chunks.get(i - 1).to.plusDays(1), chunks.get(i).from);
+        }
+    }
+}
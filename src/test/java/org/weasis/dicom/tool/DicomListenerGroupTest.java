@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.tool;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.param.DeviceListenerService;
+import org.weasis.dicom.param.DicomNode;
+import org.weasis.dicom.param.ListenerParams;
+
+public class DicomListenerGroupTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPoolTooSmall() throws Exception {
+        DicomListenerGroup group = new DicomListenerGroup();
+        // Two listening connections share a pool of 2 threads: no thread left for the associations
+        group.setExecutorFactory(DeviceListenerService.boundedThreadPool(2, 10));
+        addListener(group, "LISTENER1");
+        addListener(group, "LISTENER2");
+        try {
+            group.start();
+            Assert.fail("The pool must be rejected");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            group.stop();
+        }
+        Assert.assertFalse(group.isRunning());
+    }
+
+    @Test
+    public void testSharedThreadLimits() throws Exception {
+        DicomListenerGroup group = new DicomListenerGroup();
+        group.setExecutorFactory(DeviceListenerService.boundedThreadPool(8, 10));
+        DicomListener listener1 = addListener(group, "LISTENER1");
+        DicomListener listener2 = addListener(group, "LISTENER2");
+        try {
+            group.start();
+            // 8 threads - 2 listening connections - 1 for rejecting = 5 associations
+            Assert.assertEquals(3, listener1.getStoreSCP().getDevice().getLimitOpenAssociations());
+            Assert.assertEquals(2, listener2.getStoreSCP().getDevice().getLimitOpenAssociations());
+        } finally {
+            group.stop();
+        }
+    }
+
+    private DicomListener addListener(DicomListenerGroup group, String aet) throws Exception {
+        return group.addListener(folder.newFolder(aet), new DicomNode(aet, "localhost", getFreePort()),
+            new ListenerParams(true));
+    }
+
+    private static int getFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
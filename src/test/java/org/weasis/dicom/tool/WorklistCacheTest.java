@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.tool;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.tool.WorklistCache.Change;
+
+public class WorklistCacheTest {
+
+    @Test
+    public void testKey() {
+        Assert.assertEquals("SPS1|1.2.3", WorklistCache.getKey(item("SPS1", "1.2.3", "CT")));
+        Assert.assertEquals("null|1.2.3", WorklistCache.getKey(item(null, "1.2.3", "CT")));
+
+        // Without identifier
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.AccessionNumber, VR.SH, "ACC1");
+        attrs.setString(Tag.PatientID, VR.LO, "PAT1");
+        Assert.assertEquals("ACC1|PAT1", WorklistCache.getKey(attrs));
+    }
+
+    @Test
+    public void testDiff() {
+        Map<String, Attributes> previous = toMap(item("SPS1", "1.2.3", "CT"), item("SPS2", "1.2.4", "MR"),
+            item("SPS3", "1.2.5", "US"));
+        Map<String, Attributes> current = toMap(item("SPS1", "1.2.3", "CT"), item("SPS2", "1.2.4", "PT"),
+            item("SPS4", "1.2.6", "CR"));
+
+        List<Change> changes = WorklistCache.diff(previous, current);
+        Assert.assertEquals(3, changes.size());
+
+        Change changed = changes.get(0);
+        Assert.assertEquals(Change.Type.CHANGED, changed.getType());
+        Assert.assertEquals("SPS2|1.2.4", changed.getKey());
+        Assert.assertEquals("MR", getModality(changed.getPrevious()));
+        Assert.assertEquals("PT", getModality(changed.getCurrent()));
+
+        Change added = changes.get(1);
+        Assert.assertEquals(Change.Type.ADDED, added.getType());
+        Assert.assertEquals("SPS4|1.2.6", added.getKey());
+        Assert.assertNull(added.getPrevious());
+
+        Change removed = changes.get(2);
+        Assert.assertEquals(Change.Type.REMOVED, removed.getType());
+        Assert.assertEquals("SPS3|1.2.5", removed.getKey());
+        Assert.assertNull(removed.getCurrent());
+    }
+
+    @Test
+    public void testNoChange() {
+        Map<String, Attributes> previous = toMap(item("SPS1", "1.2.3", "CT"));
+        Assert.assertTrue(WorklistCache.diff(previous, toMap(item("SPS1", "1.2.3", "CT"))).isEmpty());
+        Assert.assertEquals(1, WorklistCache.diff(Collections.emptyMap(), previous).size());
+        Assert.assertEquals(Change.Type.REMOVED,
+            WorklistCache.diff(previous, Collections.emptyMap()).get(0).getType());
+    }
+
+    private static Attributes item(String spsID, String studyUID, String modality) {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, studyUID);
+        Attributes sps = new Attributes();
+        sps.setString(Tag.ScheduledProcedureStepID, VR.SH, spsID);
+        sps.setString(Tag.Modality, VR.CS, modality);
+        attrs.newSequence(Tag.ScheduledProcedureStepSequence, 1).add(sps);
+        return attrs;
+    }
+
+    private static String getModality(Attributes item) {
+        return item.getNestedDataset(Tag.ScheduledProcedureStepSequence).getString(Tag.Modality);
+    }
+
+    private static Map<String, Attributes> toMap(Attributes... items) {
+        Map<String, Attributes> map = new LinkedHashMap<>();
+        for (Attributes item : items) {
+            map.put(WorklistCache.getKey(item), item);
+        }
+        return map;
+    }
+}
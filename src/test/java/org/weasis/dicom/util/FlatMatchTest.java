@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Sequence;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.VR;
+import org.junit.Assert;
+import org.junit.Test;
+import org.weasis.dicom.param.DicomParam;
+
+public class FlatMatchTest {
+    private static final int[] SPS = { Tag.ScheduledProcedureStepSequence };
+
+    @Test
+    public void testTopLevelTags() {
+        FlatMatch.Schema schema = new FlatMatch.Schema(Tag.StudyInstanceUID, Tag.PatientName, Tag.ModalitiesInStudy,
+            Tag.NumberOfStudyRelatedInstances);
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientName, VR.PN, "Doe^John");
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, "1.2.3");
+        attrs.setString(Tag.ModalitiesInStudy, VR.CS, "CT", "PT");
+        attrs.setInt(Tag.NumberOfStudyRelatedInstances, VR.IS, 12);
+        // Not in the schema
+        attrs.setString(Tag.StudyDescription, VR.LO, "Description");
+
+        FlatMatch match = schema.toMatch(attrs);
+        Assert.assertEquals("Doe^John", match.getString(Tag.PatientName));
+        Assert.assertEquals("CT\\PT", match.getString(Tag.ModalitiesInStudy));
+        Assert.assertArrayEquals(new String[] { "CT", "PT" }, match.getStrings(Tag.ModalitiesInStudy));
+        Assert.assertNull(match.getString(Tag.StudyDescription));
+
+        Attributes copy = match.toAttributes();
+        Assert.assertEquals("1.2.3", copy.getString(Tag.StudyInstanceUID));
+        Assert.assertArrayEquals(new String[] { "CT", "PT" }, copy.getStrings(Tag.ModalitiesInStudy));
+        Assert.assertEquals(12, copy.getInt(Tag.NumberOfStudyRelatedInstances, 0));
+        Assert.assertFalse(copy.contains(Tag.StudyDescription));
+    }
+
+    @Test
+    public void testSequenceKeys() {
+        FlatMatch.Schema schema = FlatMatch.Schema.of(new DicomParam(Tag.PatientID),
+            new DicomParam(SPS, Tag.Modality), new DicomParam(SPS, Tag.ScheduledStationAETitle),
+            new DicomParam(SPS, Tag.ScheduledProcedureStepID));
+        Assert.assertArrayEquals(new int[] { Tag.PatientID }, schema.getTags());
+        Assert.assertEquals(3, schema.getTags(Tag.ScheduledProcedureStepSequence).length);
+
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.PatientID, VR.LO, "PAT1");
+        Sequence seq = attrs.newSequence(Tag.ScheduledProcedureStepSequence, 1);
+        Attributes sps = new Attributes();
+        sps.setString(Tag.Modality, VR.CS, "MR");
+        sps.setString(Tag.ScheduledStationAETitle, VR.AE, "MR1");
+        seq.add(sps);
+
+        FlatMatch match = schema.toMatch(attrs);
+        Assert.assertEquals("PAT1", match.getString(Tag.PatientID));
+        Assert.assertEquals("MR", match.getString(Tag.ScheduledProcedureStepSequence, Tag.Modality));
+        Assert.assertNull(match.getString(Tag.Modality));
+        Assert.assertNull(match.getString(Tag.ScheduledProcedureStepSequence, Tag.ScheduledProcedureStepID));
+
+        Attributes copy = match.toAttributes();
+        Attributes item = copy.getNestedDataset(Tag.ScheduledProcedureStepSequence);
+        Assert.assertNotNull(item);
+        Assert.assertEquals("MR1", item.getString(Tag.ScheduledStationAETitle));
+        Assert.assertEquals(1, copy.getSequence(Tag.ScheduledProcedureStepSequence).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNestedSequences() {
+        FlatMatch.Schema.of(new DicomParam(new int[] { Tag.ScheduledProcedureStepSequence,
+            Tag.ScheduledProtocolCodeSequence }, Tag.CodeValue));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSequenceTag() {
+        new FlatMatch.Schema(Tag.ScheduledProcedureStepSequence);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBinaryTag() {
+        new FlatMatch.Schema(Tag.PixelData);
+    }
+}
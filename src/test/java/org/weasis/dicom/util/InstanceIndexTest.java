@@ -0,0 +1,202 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InstanceIndexTest {
+    private static final String STUDY_UID = "1.2.3.4";
+    private static final String SERIES_UID = "1.2.3.4.1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testJournalReplay() throws IOException {
+        File dir = folder.newFolder("storage");
+        InstanceIndex index = new InstanceIndex(dir);
+        add(index, dir, "1.2.3.4.1.1", 10);
+        add(index, dir, "1.2.3.4.1.2", 20);
+        add(index, dir, "1.2.3.4.1.3", 30);
+        index.remove("1.2.3.4.1.2");
+        index.close();
+
+        InstanceIndex reopened = new InstanceIndex(dir);
+        try {
+            Assert.assertEquals(2, reopened.size());
+            Assert.assertTrue(reopened.contains("1.2.3.4.1.1"));
+            Assert.assertFalse(reopened.contains("1.2.3.4.1.2"));
+            Assert.assertTrue(reopened.contains("1.2.3.4.1.3"));
+            Assert.assertEquals(2, reopened.getInstancesOfStudy(STUDY_UID).size());
+
+            IndexedInstance instance = reopened.getInstance("1.2.3.4.1.3");
+            Assert.assertEquals(30, instance.getSize());
+            Assert.assertEquals(UID.ExplicitVRLittleEndian, instance.getTransferSyntaxUID());
+            Assert.assertEquals("PAT\tID", instance.getPatientID());
+            Assert.assertEquals("1.2.3.4.1.3", instance.getFile().getName());
+            Assert.assertTrue(instance.getFile().isFile());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testTruncatedRecord() throws IOException {
+        File dir = folder.newFolder("storage");
+        InstanceIndex index = new InstanceIndex(dir);
+        add(index, dir, "1.2.3.4.1.1", 10);
+        add(index, dir, "1.2.3.4.1.2", 20);
+        index.close();
+
+        // Crash while writing the last record
+        File journal = new File(dir, InstanceIndex.INDEX_FILE_NAME);
+        try (RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+            raf.setLength(raf.length() - 5);
+        }
+
+        index = new InstanceIndex(dir);
+        Assert.assertEquals(1, index.size());
+        Assert.assertTrue(index.contains("1.2.3.4.1.1"));
+        // The journal has been rewritten without the incomplete record, the new records are valid
+        add(index, dir, "1.2.3.4.1.3", 30);
+        index.close();
+
+        InstanceIndex reopened = new InstanceIndex(dir);
+        try {
+            Assert.assertEquals(2, reopened.size());
+            Assert.assertTrue(reopened.contains("1.2.3.4.1.1"));
+            Assert.assertTrue(reopened.contains("1.2.3.4.1.3"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testInvalidCrc() throws IOException {
+        File dir = folder.newFolder("storage");
+        InstanceIndex index = new InstanceIndex(dir);
+        add(index, dir, "1.2.3.4.1.1", 10);
+        add(index, dir, "1.2.3.4.1.2", 20);
+        add(index, dir, "1.2.3.4.1.3", 30);
+        index.close();
+
+        // Change the size of the second record without updating its CRC
+        File journal = new File(dir, InstanceIndex.INDEX_FILE_NAME);
+        List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(3, lines.size());
+        lines.set(1, lines.get(1).replace("\t20\t", "\t21\t"));
+        Files.write(journal.toPath(), lines, StandardCharsets.UTF_8);
+
+        InstanceIndex reopened = new InstanceIndex(dir);
+        try {
+            // The records after the invalid one are not trusted
+            Assert.assertEquals(1, reopened.size());
+            Assert.assertTrue(reopened.contains("1.2.3.4.1.1"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void testListener() throws IOException {
+        File dir = folder.newFolder("storage");
+        InstanceIndex index = new InstanceIndex(dir);
+        long[] size = new long[1];
+        index.addListener(new InstanceIndex.Listener() {
+
+            @Override
+            public void instanceAdded(IndexedInstance instance, IndexedInstance replaced) {
+                size[0] += instance.getSize() - (replaced == null ? 0 : replaced.getSize());
+            }
+
+            @Override
+            public void instanceRemoved(IndexedInstance instance) {
+                size[0] -= instance.getSize();
+            }
+
+            @Override
+            public void indexRebuilt() {
+                size[0] = -1;
+            }
+        });
+        try {
+            add(index, dir, "1.2.3.4.1.1", 10);
+            add(index, dir, "1.2.3.4.1.2", 20);
+            Assert.assertEquals(30, size[0]);
+            add(index, dir, "1.2.3.4.1.2", 5);
+            Assert.assertEquals(15, size[0]);
+            index.remove("1.2.3.4.1.1");
+            Assert.assertEquals(5, size[0]);
+        } finally {
+            index.close();
+        }
+    }
+
+    @Test
+    public void testRebuildSkipsTemporaryFiles() throws IOException {
+        File dir = folder.newFolder("storage");
+        String iuid = "1.2.3.4.1.1";
+        writeDicom(new File(dir, iuid), iuid, "Original");
+        // Leftover of an interrupted compression with the same SOP Instance UID
+        writeDicom(new File(dir, iuid + BackgroundCompressor.TMP_EXTENSION), iuid, "Compressing");
+        writeDicom(new File(dir, "1.2.3.4.1.2" + WriteBehindWriter.PART_EXTENSION), "1.2.3.4.1.2", "Partial");
+
+        InstanceIndex index = new InstanceIndex(dir);
+        try {
+            Assert.assertEquals(1, index.rebuild());
+            Assert.assertEquals(iuid, index.getInstance(iuid).getFile().getName());
+            Assert.assertFalse(index.contains("1.2.3.4.1.2"));
+        } finally {
+            index.close();
+        }
+    }
+
+    private static void writeDicom(File file, String iuid, String name) throws IOException {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, STUDY_UID);
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, SERIES_UID);
+        attrs.setString(Tag.PatientName, VR.PN, name);
+        try (DicomOutputStream dos = new DicomOutputStream(file)) {
+            dos.writeDataset(attrs.createFileMetaInformation(UID.ExplicitVRLittleEndian), attrs);
+        }
+    }
+
+    private static void add(InstanceIndex index, File dir, String iuid, int size) throws IOException {
+        File file = new File(dir, iuid);
+        Files.write(file.toPath(), new byte[size]);
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.TransferSyntaxUID, VR.UI, UID.ExplicitVRLittleEndian);
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, STUDY_UID);
+        attrs.setString(Tag.SeriesInstanceUID, VR.UI, SERIES_UID);
+        // Escaped in the journal
+        attrs.setString(Tag.PatientID, VR.LO, "PAT\tID");
+        index.add(attrs, file);
+    }
+}
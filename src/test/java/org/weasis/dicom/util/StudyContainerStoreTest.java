@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.dcm4che3.data.Attributes;
+import org.dcm4che3.data.Tag;
+import org.dcm4che3.data.UID;
+import org.dcm4che3.data.VR;
+import org.dcm4che3.io.DicomInputStream;
+import org.dcm4che3.io.DicomOutputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.weasis.dicom.util.StudyContainerStore.ContainerEntry;
+
+public class StudyContainerStoreTest {
+    private static final String STUDY_UID = "1.2.3.4";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        File dir = folder.newFolder("containers");
+        try (StudyContainerStore store = new StudyContainerStore(dir)) {
+            append(store, "1.2.3.4.1.1", "First");
+            ContainerEntry entry = append(store, "1.2.3.4.1.2", "Second");
+            Assert.assertEquals("1.2.3.4.1.2", entry.getSopInstanceUID());
+            Assert.assertEquals(UID.ExplicitVRLittleEndian, entry.getTransferSyntaxUID());
+
+            Assert.assertEquals(2, store.getEntries(STUDY_UID).size());
+            Assert.assertEquals("Second", read(store, "1.2.3.4.1.2").getString(Tag.PatientName));
+            Assert.assertNull(store.openInstance(STUDY_UID, "1.2.3.4.1.3"));
+            Assert.assertTrue(store.getStudyUIDs().contains(STUDY_UID));
+        }
+    }
+
+    @Test
+    public void testReopenAndReplace() throws IOException {
+        File dir = folder.newFolder("containers");
+        try (StudyContainerStore store = new StudyContainerStore(dir)) {
+            append(store, "1.2.3.4.1.1", "First");
+            append(store, "1.2.3.4.1.2", "Second");
+        }
+
+        try (StudyContainerStore store = new StudyContainerStore(dir)) {
+            Assert.assertEquals(2, store.getEntries(STUDY_UID).size());
+            append(store, "1.2.3.4.1.1", "Replaced");
+            List<ContainerEntry> entries = store.getEntries(STUDY_UID);
+            Assert.assertEquals(2, entries.size());
+            Assert.assertEquals("Replaced", read(store, "1.2.3.4.1.1").getString(Tag.PatientName));
+        }
+    }
+
+    @Test
+    public void testTruncatedContainer() throws IOException {
+        File dir = folder.newFolder("containers");
+        try (StudyContainerStore store = new StudyContainerStore(dir)) {
+            append(store, "1.2.3.4.1.1", "First");
+            append(store, "1.2.3.4.1.2", "Second");
+        }
+
+        // Crash while writing the data of the last instance
+        try (StudyContainerStore store = new StudyContainerStore(dir);
+                        RandomAccessFile raf = new RandomAccessFile(store.getContainerFile(STUDY_UID), "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        try (StudyContainerStore store = new StudyContainerStore(dir)) {
+            List<ContainerEntry> entries = store.getEntries(STUDY_UID);
+            Assert.assertEquals(1, entries.size());
+            Assert.assertEquals("First", read(store, "1.2.3.4.1.1").getString(Tag.PatientName));
+        }
+    }
+
+    @Test
+    public void testInvalidStudyUID() throws IOException {
+        File dir = folder.newFolder("containers");
+        try (StudyContainerStore store = new StudyContainerStore(dir)) {
+            String iuid = "1.2.3.4.1.1";
+            Attributes fmi = Attributes.createFileMetaInformation(iuid, UID.CTImageStorage, UID.ExplicitVRLittleEndian);
+            try {
+                store.append("../1.2.3", fmi, encode(iuid, "Name"));
+                Assert.fail("The study UID must be rejected");
+            } catch (IOException e) {
+                // Expected
+            }
+            Assert.assertTrue(store.getEntries("../1.2.3").isEmpty());
+            Assert.assertNull(store.openInstance("../1.2.3", iuid));
+            Assert.assertFalse(new File(dir.getParentFile(), "1.2.3" + StudyContainerStore.CONTAINER_EXTENSION)
+                .exists());
+        }
+    }
+
+    private static ContainerEntry append(StudyContainerStore store, String iuid, String name) throws IOException {
+        Attributes fmi = Attributes.createFileMetaInformation(iuid, UID.CTImageStorage, UID.ExplicitVRLittleEndian);
+        // The study UID is read from the dataset
+        return store.append(fmi, encode(iuid, name));
+    }
+
+    private static byte[] encode(String iuid, String name) throws IOException {
+        Attributes attrs = new Attributes();
+        attrs.setString(Tag.SOPClassUID, VR.UI, UID.CTImageStorage);
+        attrs.setString(Tag.SOPInstanceUID, VR.UI, iuid);
+        attrs.setString(Tag.StudyInstanceUID, VR.UI, STUDY_UID);
+        attrs.setString(Tag.PatientName, VR.PN, name);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DicomOutputStream dos = new DicomOutputStream(out, UID.ExplicitVRLittleEndian)) {
+            dos.writeDataset(null, attrs);
+        }
+        return out.toByteArray();
+    }
+
+    private static Attributes read(StudyContainerStore store, String iuid) throws IOException {
+        try (InputStream in = store.openInstance(STUDY_UID, iuid); DicomInputStream dis = new DicomInputStream(in)) {
+            Attributes fmi = dis.readFileMetaInformation();
+            Assert.assertEquals(iuid, fmi.getString(Tag.MediaStorageSOPInstanceUID));
+            Attributes attrs = dis.readDataset(-1, -1);
+            Assert.assertEquals(iuid, attrs.getString(Tag.SOPInstanceUID));
+            return attrs;
+        }
+    }
+}
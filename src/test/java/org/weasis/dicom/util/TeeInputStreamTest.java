@@ -0,0 +1,59 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TeeInputStreamTest {
+
+    @Test
+    public void testCopyReadAndSkipped() throws IOException {
+        byte[] data = new byte[20000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TeeInputStream in = new TeeInputStream(new ByteArrayInputStream(data), out)) {
+            Assert.assertEquals(data[0] & 0xFF, in.read());
+            byte[] buf = new byte[100];
+            Assert.assertEquals(100, in.read(buf, 0, 100));
+            // Larger than the skip buffer
+            Assert.assertEquals(10000, in.skip(10000));
+            byte[] rest = new byte[data.length];
+            int n;
+            int total = 0;
+            while ((n = in.read(rest, total, rest.length - total)) > 0) {
+                total += n;
+            }
+            Assert.assertEquals(data.length - 10101, total);
+            Assert.assertEquals(-1, in.read());
+            Assert.assertEquals(0, in.skip(10));
+        }
+        Assert.assertArrayEquals(data, out.toByteArray());
+    }
+
+    @Test
+    public void testMarkNotSupported() {
+        TeeInputStream in = new TeeInputStream(new ByteArrayInputStream(new byte[10]), new ByteArrayOutputStream());
+        Assert.assertFalse(in.markSupported());
+        try {
+            in.reset();
+            Assert.fail("reset() must fail");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2009-2019 Weasis Team and others.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v2.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v20.html
+ *
+ * Contributors:
+ *     Nicolas Roduit - initial API and implementation
+ *******************************************************************************/
+package org.weasis.dicom.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dcm4che3.data.UID;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TranscodedDataCacheTest {
+    private static final String TSUID = UID.ExplicitVRLittleEndian;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEncodeOnce() throws IOException {
+        TranscodedDataCache cache = new TranscodedDataCache(1000);
+        AtomicInteger calls = new AtomicInteger();
+        TranscodedDataCache.Encoder encoder = () -> {
+            calls.incrementAndGet();
+            return data(10, 1);
+        };
+        Assert.assertArrayEquals(data(10, 1), cache.getOrEncode("1.2.3", TSUID, encoder));
+        Assert.assertArrayEquals(data(10, 1), cache.getOrEncode("1.2.3", TSUID, encoder));
+        // Another transfer syntax is another entry
+        cache.getOrEncode("1.2.3", UID.ImplicitVRLittleEndian, encoder);
+        Assert.assertEquals(2, calls.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+        Assert.assertEquals(20, cache.getMemorySize());
+    }
+
+    @Test
+    public void testSpillToDisk() throws IOException {
+        File dir = folder.newFolder("cache");
+        TranscodedDataCache cache = new TranscodedDataCache(100, dir, 100);
+        cache.getOrEncode("1.1", TSUID, () -> data(60, 1));
+        cache.getOrEncode("1.2", TSUID, () -> data(60, 2));
+        // The least recently used entry is moved to the disk
+        Assert.assertEquals(60, cache.getMemorySize());
+        Assert.assertEquals(60, cache.getDiskSize());
+        Assert.assertArrayEquals(data(60, 1), cache.getOrEncode("1.1", TSUID, TranscodedDataCacheTest::fail));
+
+        // The disk limit deletes the oldest file
+        cache.getOrEncode("1.3", TSUID, () -> data(60, 3));
+        Assert.assertEquals(60, cache.getMemorySize());
+        Assert.assertEquals(60, cache.getDiskSize());
+        Assert.assertArrayEquals(data(60, 2), cache.getOrEncode("1.2", TSUID, TranscodedDataCacheTest::fail));
+
+        cache.clear();
+        Assert.assertEquals(0, cache.getMemorySize());
+        Assert.assertEquals(0, cache.getDiskSize());
+        String[] files = dir.list();
+        Assert.assertNotNull(files);
+        Assert.assertEquals(0, files.length);
+    }
+
+    @Test
+    public void testEncoderFailure() throws IOException {
+        TranscodedDataCache cache = new TranscodedDataCache(1000);
+        try {
+            cache.getOrEncode("1.2.3", TSUID, TranscodedDataCacheTest::fail);
+            Assert.fail("The failure of the encoder must be thrown");
+        } catch (IOException e) {
+            // Expected
+        }
+        // Not cached, encoded again
+        Assert.assertArrayEquals(data(10, 1), cache.getOrEncode("1.2.3", TSUID, () -> data(10, 1)));
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        TranscodedDataCache cache = new TranscodedDataCache(1000);
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<byte[]> first = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.getOrEncode("1.2.3", TSUID, () -> {
+                    calls.incrementAndGet();
+                    started.countDown();
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return data(10, 1);
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+        CompletableFuture<byte[]> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return cache.getOrEncode("1.2.3", TSUID, () -> {
+                    calls.incrementAndGet();
+                    return data(10, 2);
+                });
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        release.countDown();
+        Assert.assertArrayEquals(data(10, 1), first.get(10, TimeUnit.SECONDS));
+        // Waits for the encoding in progress or gets the cached data
+        Assert.assertArrayEquals(data(10, 1), second.get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, calls.get());
+    }
+
+    private static byte[] data(int length, int value) {
+        byte[] b = new byte[length];
+        Arrays.fill(b, (byte) value);
+        return b;
+    }
+
+    private static byte[] fail() throws IOException {
+        throw new IOException("Not expected to be encoded");
+    }
+}